@@ -4,6 +4,7 @@ import com.frc.gtf.GTF;
 import com.frc.parameters.Parameters;
 import com.frc.parameters.ResultStruct;
 import com.frc.vcf.VCF;
+import com.intervals.Forest;
 import com.tools.Utils;
 import java.util.HashMap;
 
@@ -13,15 +14,10 @@ import java.util.HashMap;
  * 
  */
 public class FastReadCounter {
-	// TODO Add the possibility to process multiple bams at once
-	// TODO Add parallelization (currently, bug, don't generate the exact same
-	// output, problem in sync?)
 	// TODO Don't require a GTF file for --bamtag option
 	// TODO Remove "Unkown" column when not detailed => Careful when only one sample
 	// (it's called Unkown)
 	// TODO Add prefix for output, instead of folder
-	// TODO Handle paired / multiple reads for paralellization (pairedBuffer should
-	// be created smartly)
 	// TODO check merge UMI (pas fait)
 
 	public static void main(String[] args) throws Exception {
@@ -33,9 +29,16 @@ public class FastReadCounter {
 
 			// Reading args
 			Parameters.load(args);
+			if (Parameters.writeSplitIndex) {
+				JobDispatcher.writeSplitIndexes();
+				System.out.println("\nFRC DONE [" + Utils.toReadableTime(System.currentTimeMillis() - start) + "]");
+				return;
+			}
 
-			// Reading regions
+			// Reading regions (only the ones on the reference sequences of the BAM files, unless writing an index shared by all BAM files)
 			Long time = System.currentTimeMillis();
+			if (!Parameters.use_bam_tags && !Parameters.writeIndexCache)
+				Forest.setContigs(JobDispatcher.getReferenceNames());
 			if (Parameters.inputGTFFile != null)
 				GTF.readGTF();
 			else if (Parameters.inputVCFFile != null)
@@ -46,11 +49,7 @@ public class FastReadCounter {
 
 			// Reading reads in BAM
 			time = System.currentTimeMillis();
-			HashMap<String, ResultStruct> results;
-			if (Parameters.nbThreads == 1)
-				results = JobDispatcher.readBAM();
-			else
-				results = JobDispatcher.readBAMParallel();
+			HashMap<String, ResultStruct> results = JobDispatcher.readBAMs();
 			System.out.println("BAM reading DONE [" + Utils.toReadableTime(System.currentTimeMillis() - time) + "]");
 
 			// Create the read count matrix
@@ -1,40 +1,76 @@
 package com.frc.bam;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 
-import com.errors.ErrorMessage;
-import com.frc.parameters.Global;
 import com.frc.parameters.Parameters;
 import com.frc.parameters.ResultStruct;
 import com.frc.parameters.UMIDedup;
+import com.intervals.IntSet;
 import com.tools.Utils;
 
-import htsjdk.samtools.SAMRecord;
-
 public class BAM 
 {
+	private static final ThreadLocal<IntSet> overlapping = ThreadLocal.withInitial(IntSet::new); // Features overlapped by the read/pair being counted, reused by each thread
+	
+	/**
+	 * Read the next record from the (inflated) BAM stream and process it. Records that are discarded anyway are only counted from their fixed part, the rest of their bytes is skipped
+	 * @return false at EOF
+	 */
+	public static boolean readRecord(BamRecordView samRecord, InputStream in, HashMap<String, ResultStruct> results, MateBuffer pairedBuffer) throws IOException
+	{
+		if(!samRecord.readHeader(in)) return false;
+		if(filterRecord(samRecord, results)) samRecord.skipBody(in);
+		else
+		{
+			samRecord.readBody(in);
+			processRecord(samRecord, results, pairedBuffer);
+		}
+		return true;
+	}
+
 	/**
-	 * Using htsjdk to process the samRecord read from the BAM file created by the alignment tool
+	 * Process the record if it is discarded whatever its name/CIGAR/tags are (unmapped, not unique, or too low aQual), using only its fixed part
+	 * Same counts as processRecord(), but cannot be used when demultiplexing (the barcode is in the tags)
+	 * @return true if the record was processed
+	 */
+	private static boolean filterRecord(BamRecordView samRecord, HashMap<String, ResultStruct> results) throws InvalidRecordException
+	{
+		if(Parameters.doDemultiplexing) return false;
+		boolean unmapped = samRecord.getReadUnmappedFlag();
+		boolean notUnique = !unmapped && samRecord.isSecondaryOrSupplementary();
+		boolean toolowAqual = !unmapped && !Parameters.is_paired && (!notUnique || Parameters.keep_multiple_mapped_reads) && samRecord.getMappingQuality() < Parameters.minAQual; // In paired-end, aQual is checked on both mates
+		if(!unmapped && !(notUnique && !Parameters.keep_multiple_mapped_reads) && !toolowAqual) return false;
+
+		ResultStruct res = results.get("Unknown");
+		res.nbReads++;
+		if(Parameters.is_paired && !samRecord.getReadPairedFlag()) throw new InvalidRecordException("You used the --paired option, but it seems that some reads are not paired?");
+		if(samRecord.getDuplicateReadFlag()) res.duplicates++;
+		if(unmapped) res.unmapped++;
+		if(notUnique) res.notUnique++;
+		if(toolowAqual) res.toolowAqual++;
+		return true;
+	}
+
+	/**
+	 * Process the raw samRecord read from the BAM file created by the alignment tool
 	 * 
 	 */
-	public static void processRecord(SAMRecord samRecord, HashMap<String, ResultStruct> results, HashMap<String, Read> pairedBuffer)
+	public static void processRecord(BamRecordView samRecord, HashMap<String, ResultStruct> results, MateBuffer pairedBuffer) throws InvalidRecordException
 	{
 		// Resolve barcode first
 		String barcode = "Unknown";
-		if(Parameters.doDemultiplexing)
-		{
-			barcode = (String)samRecord.getAttribute("CB");
-			if(barcode == null || barcode.equals("-")) barcode = "Unknown"; // New in STAR, now unknown barcodes are labelled '-' instead of the CB tag being nonexistent.
-		}
+		if(Parameters.doDemultiplexing) barcode = TagExtractor.getBarcode(samRecord);
 
 		// Check if barcode is in the list of barcodes
 		ResultStruct res = results.get(barcode); // This should exist
-		if(res == null) new ErrorMessage("Barcode " + barcode + " is found in the BAM file, but is not in your list of barcodes");
+		if(res == null) throw new InvalidRecordException("Barcode " + barcode + " is found in the BAM file, but is not in your list of barcodes");
 		res.nbReads++; // Count reads by barcode
 		
 		// Quantify read according to its tags
-		if(Parameters.is_paired && !samRecord.getReadPairedFlag()) new ErrorMessage("You used the --paired option, but it seems that some reads are not paired?");
+		if(Parameters.is_paired && !samRecord.getReadPairedFlag()) throw new InvalidRecordException("You used the --paired option, but it seems that some reads are not paired?");
 		if(samRecord.getDuplicateReadFlag()) res.duplicates++; // Just count this, but still process it
 		if(samRecord.getReadUnmappedFlag()) res.unmapped++;
 		else
@@ -61,69 +97,12 @@ public class BAM
 					}
 					else
 					{
-						String name = samRecord.getReadName();
-						Read read1 = pairedBuffer.remove(samRecord.getReadName());
+						Read read1 = pairedBuffer.takeMate(samRecord, barcode); // Or this read waits for its mate
 						if(read1 != null) // I run the counting only if two pairs are identified/available
 						{
-							res.countedPair++;
-							if(samRecord.getMappingQuality() < Parameters.minAQual || read1.mapQ < Parameters.minAQual) res.toolowAqual++; // To match htseq-count. I do this first
-							else
-							{
-								if(Parameters.use_bam_tags)
-								{
-									String gene_id_1 = read1.gene;
-									String gene_id_2 = (String)samRecord.getAttribute("GX");
-									String umi = null;
-									if(Parameters.umi_dedup != UMIDedup.NONE)
-									{
-										umi = (String)samRecord.getAttribute("UB");
-										if(umi == null) umi = (String)samRecord.getAttribute("UR"); // Non corrected
-									}
-									if(gene_id_1 != null && gene_id_1.equals("-")) gene_id_1 = null;
-									if(gene_id_2 != null && gene_id_2.equals("-")) gene_id_2 = null;
-									if(gene_id_1 != null && gene_id_2 != null && !gene_id_1.equals(gene_id_2)) { res.foundGXTag++; res.ambiguous++; }
-									else if(gene_id_1 == null && gene_id_2 == null) res.noFeature++;
-									else
-									{
-										res.foundGXTag++;
-										String gene_id = gene_id_1;
-										if(gene_id == null) gene_id = gene_id_2;
-										res.mapped = res.mapped + 2;
-										Integer indexGene = Global.geneIndex.get(gene_id); // From GTF
-										if(indexGene == null) new ErrorMessage("ERROR: This gene " + gene_id + " is not in your GTF file. Please check again.");
-										res.counts[indexGene]++;
-										if(umi != null) { res.foundUTag++; res.addUMI(indexGene, umi); }
-									}
-								}
-								else // Use positions
-								{
-									HashSet<String> overlappingGenes_1 = Utils.getOverlappingFeatures(read1.chr, read1.startV, read1.endV, read1.cigar, read1.negativeStrandFlag, read1.firstOfPair);
-									HashSet<String> overlappingGenes_2 = Utils.getOverlappingFeatures(samRecord.getReferenceName(), samRecord.getAlignmentStart(), samRecord.getAlignmentEnd(), samRecord.getCigar(), samRecord.getReadNegativeStrandFlag(), samRecord.getFirstOfPairFlag());
-									
-									if(overlappingGenes_1.size() == 0 && overlappingGenes_2.size() == 0) res.noFeature++;
-									else
-									{
-										overlappingGenes_1.addAll(overlappingGenes_2);
-										if(overlappingGenes_1.size() == 1)	
-										{
-											res.mapped++;
-											String gene = overlappingGenes_1.iterator().next();
-											res.counts[Global.geneIndex.get(gene)]++;
-										}
-										else res.ambiguous++;
-									}
-								}
-							}
-						}
-						else 
-						{
-							String umi = null;
-							if(Parameters.umi_dedup != UMIDedup.NONE)
-							{
-								umi = (String)samRecord.getAttribute("UB");
-								if(umi == null) umi = (String)samRecord.getAttribute("UR"); // Non corrected
-							}
-							pairedBuffer.put(name, new Read(samRecord.getReferenceName(), samRecord.getAlignmentStart(), samRecord.getAlignmentEnd(), samRecord.getCigar(), samRecord.getReadNegativeStrandFlag(), samRecord.getMappingQuality(), (String)samRecord.getAttribute("GX"), umi, samRecord.getFirstOfPairFlag()));
+							Read read2 = toRead(samRecord, barcode, false);
+							int indexGene = countPair(read1, read2, res);
+							if(indexGene != -1) pairedBuffer.addUMI(indexGene, read2, res); // Now, or when the partition is merged (see MateBuffer.undoPairs)
 						}
 					}
 				}
@@ -136,43 +115,132 @@ public class BAM
 		}
 	}
 	
-	private static void processSingleEndRead(SAMRecord samRecord, ResultStruct res)
+	/**
+	 * Count a pair of reads
+	 * @param read1 first mate found in the BAM file
+	 * @param read2 second mate found in the BAM file (its barcode and UMI are used)
+	 * @param res results of the barcode of read2
+	 */
+	public static void processPair(Read read1, Read read2, ResultStruct res)
 	{
-		if(samRecord.getMappingQuality() < Parameters.minAQual) res.toolowAqual++; // To match htseq-count. I do this first
+		int indexGene = countPair(read1, read2, res);
+		if(indexGene != -1) res.addUMI(indexGene, read2.packedUMI, read2.UMILength);
+	}
+	
+	/**
+	 * Same as processPair(), except that the UMI of read2 is not added
+	 * @return the gene the UMI of read2 should be added to, or -1 if none
+	 */
+	public static int countPair(Read read1, Read read2, ResultStruct res)
+	{
+		res.countedPair++;
+		if(read2.mapQ < Parameters.minAQual || read1.mapQ < Parameters.minAQual) res.toolowAqual++; // To match htseq-count. I do this first
 		else
-		{	
+		{
 			if(Parameters.use_bam_tags)
 			{
-				String gene_id = (String)samRecord.getAttribute("GX");
-				//String gene_name = (String)samRecord.getAttribute("GN"); // Not used
-				String umi = null;
-				if(Parameters.umi_dedup != UMIDedup.NONE)
+				int indexGene_1 = read1.geneIndex;
+				int indexGene_2 = read2.geneIndex;
+				if(indexGene_1 != -1 && indexGene_2 != -1 && indexGene_1 != indexGene_2) { res.foundGXTag++; res.ambiguous++; }
+				else if(indexGene_1 == -1 && indexGene_2 == -1) res.noFeature++;
+				else
 				{
-					umi = (String)samRecord.getAttribute("UB");
-					if(umi == null) umi = (String)samRecord.getAttribute("UR"); // Non corrected
+					res.foundGXTag++;
+					int indexGene = indexGene_1;
+					if(indexGene == -1) indexGene = indexGene_2;
+					res.mapped = res.mapped + 2;
+					res.counts[indexGene]++;
+					if(read2.UMILength != -1) { res.foundUTag++; return indexGene; }
 				}
-				if(gene_id == null || gene_id.equals("-")) res.noFeature++;
+			}
+			else // Use positions
+			{
+				IntSet overlappingGenes = overlapping.get(); // Features of both mates
+				overlappingGenes.clear();
+				Utils.getOverlappingFeatures(read1.referenceIndex, read1.startV, read1.endV, read1.cigar, read1.nbCigarOps, read1.negativeStrandFlag, read1.firstOfPair, overlappingGenes);
+				Utils.getOverlappingFeatures(read2.referenceIndex, read2.startV, read2.endV, read2.cigar, read2.nbCigarOps, read2.negativeStrandFlag, read2.firstOfPair, overlappingGenes);
+				count(overlappingGenes, res);
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Keep what is needed for counting this read with its mate
+	 * @param copyCigar false if the Read is only used while samRecord is not reused
+	 */
+	static Read toRead(BamRecordView samRecord, String barcode, boolean copyCigar) throws InvalidRecordException
+	{
+		int[] cigar = copyCigar?Arrays.copyOf(samRecord.getCigar(), samRecord.getCigarLength()):samRecord.getCigar();
+		int indexGene = Parameters.use_bam_tags?TagExtractor.getGeneIndex(samRecord):-1;
+		Read read = new Read(samRecord.getReferenceName(), samRecord.getAlignmentStart(), samRecord.getAlignmentEnd(), cigar, samRecord.getReadNegativeStrandFlag(), samRecord.getMappingQuality(), indexGene, samRecord.getFirstOfPairFlag());
+		read.nbCigarOps = samRecord.getCigarLength();
+		read.referenceIndex = samRecord.getReferenceIndex();
+		read.barcode = barcode;
+		read.mateReferenceIndex = samRecord.getMateReferenceIndex();
+		read.mateStart = samRecord.getMateAlignmentStart();
+		if(Parameters.use_bam_tags && Parameters.umi_dedup != UMIDedup.NONE && TagExtractor.hasUMI(samRecord))
+		{
+			read.packedUMI = TagExtractor.getUMI(samRecord);
+			read.UMILength = TagExtractor.getUMILength(samRecord);
+		}
+		return read;
+	}
+	
+	/**
+	 * @return the read of this record, with its name (for pairing it again, see Job.readRecords)
+	 */
+	public static Read toNamedRead(BamRecordView samRecord) throws InvalidRecordException
+	{
+		String barcode = "Unknown";
+		if(Parameters.doDemultiplexing) barcode = TagExtractor.getBarcode(samRecord);
+		Read read = toRead(samRecord, barcode, true);
+		read.name = samRecord.getReadName();
+		return read;
+	}
+	
+	/**
+	 * Count a read/pair from the features it overlaps
+	 */
+	private static void count(IntSet overlappingGenes, ResultStruct res)
+	{
+		if(overlappingGenes.size() == 0) res.noFeature++;
+		else if(overlappingGenes.size() == 1)
+		{
+			int gene = overlappingGenes.get(0);
+			if(gene < 0) res.noFeature++; // Feature without gene (see Forest.build())
+			else
+			{
+				res.mapped++;
+				res.counts[gene]++;
+			}
+		}
+		else res.ambiguous++;
+	}
+	
+	private static void processSingleEndRead(BamRecordView samRecord, ResultStruct res) throws InvalidRecordException
+	{
+		if(samRecord.getMappingQuality() < Parameters.minAQual) res.toolowAqual++; // To match htseq-count. I do this first
+		else
+		{	
+			if(Parameters.use_bam_tags)
+			{
+				int indexGene = TagExtractor.getGeneIndex(samRecord);
+				if(indexGene == -1) res.noFeature++;
 				else 
 				{	
 					res.foundGXTag++;
 					res.mapped++;
-					Integer indexGene = Global.geneIndex.get(gene_id); // From GTF
-					if(indexGene == null) new ErrorMessage("ERROR: This gene " + gene_id + " is not in your GTF file. Please check again.");
 					res.counts[indexGene]++;
-					if(umi != null) { res.foundUTag++; res.addUMI(indexGene, umi); }
+					if(Parameters.umi_dedup != UMIDedup.NONE && TagExtractor.hasUMI(samRecord)) { res.foundUTag++; res.addUMI(indexGene, TagExtractor.getUMI(samRecord), TagExtractor.getUMILength(samRecord)); }
 				}
 			}
 			else // Use positions
 			{
-				HashSet<String> overlappingGenes = Utils.getOverlappingFeatures(samRecord.getReferenceName(), samRecord.getAlignmentStart(), samRecord.getAlignmentEnd(), samRecord.getCigar(), samRecord.getReadNegativeStrandFlag());
-				if(overlappingGenes.size() == 0) res.noFeature++;
-				else if(overlappingGenes.size() == 1)	
-				{
-					res.mapped++;
-					String gene = overlappingGenes.iterator().next();
-					res.counts[Global.geneIndex.get(gene)]++;
-				}
-				else res.ambiguous++;
+				IntSet overlappingGenes = overlapping.get();
+				overlappingGenes.clear();
+				Utils.getOverlappingFeatures(samRecord.getReferenceIndex(), samRecord.getAlignmentStart(), samRecord.getAlignmentEnd(), samRecord.getCigar(), samRecord.getCigarLength(), samRecord.getReadNegativeStrandFlag(), samRecord.getFirstOfPairFlag(), overlappingGenes); // firstOfPair is false for single-end, but not for paired singletons
+				count(overlappingGenes, res);
 			}
 		}
 	}
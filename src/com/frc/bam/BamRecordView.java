@@ -0,0 +1,405 @@
+package com.frc.bam;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import com.tools.Utils;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.StringUtil;
+
+/**
+ * Reusable view over the raw bytes of a BAM record. Fields are decoded on demand from the bytes, so nothing is allocated per record (unlike htsjdk SAMRecord)
+ * CIGAR operations are raw BAM ints: length << 4 | op
+ */
+public class BamRecordView
+{
+	// CIGAR operations (BAM encoding)
+	public static final int CIGAR_M = 0;
+	public static final int CIGAR_I = 1;
+	public static final int CIGAR_D = 2;
+	public static final int CIGAR_N = 3;
+	public static final int CIGAR_S = 4;
+	public static final int CIGAR_H = 5;
+	public static final int CIGAR_P = 6;
+	public static final int CIGAR_EQ = 7;
+	public static final int CIGAR_X = 8;
+	private static final char[] CIGAR_CHARS = "MIDNSHP=X".toCharArray();
+
+	private static final int FIXED_SIZE = 32; // Fixed part of a record (without block_size)
+	private static final int MAX_SIZE = 1 << 28; // Larger block_size values are garbage (e.g. a job started on a misdetected boundary), not records
+
+	private final SAMFileHeader header;
+	private final int nbReferences;
+	private byte[] data = new byte[1024]; // Grows if needed
+	private int length = 0;
+	private int[] cigar = new int[16]; // Grows if needed
+	private int nbCigarOps = -1; // -1 = not decoded yet
+	private int alignmentEnd = -1; // -1 = not computed yet
+	private final byte[] blockSize = new byte[4];
+
+	// Values of the tags found by scanTags() (see TagExtractor)
+	private short[] scannedTags = null; // null = not scanned yet for this record
+	private int[] tagOffsets = new int[0]; // Offset of the value of each scanned tag, -1 if not found
+	private int[] tagLengths = new int[0];
+
+	public BamRecordView(SAMFileHeader header)
+	{
+		this.header = header;
+		this.nbReferences = header.getSequenceDictionary().size();
+	}
+
+	/**
+	 * Read the next record from a (inflated) BAM stream
+	 * @return false at EOF
+	 */
+	public boolean read(InputStream in) throws IOException
+	{
+		if(!readHeader(in)) return false;
+		readBody(in);
+		return true;
+	}
+
+	/**
+	 * Read only the fixed part of the next record (reference, position, MAPQ, flags...). Then either readBody() or skipBody() should be called
+	 * @return false at EOF
+	 */
+	public boolean readHeader(InputStream in) throws IOException
+	{
+		int n = in.read(blockSize, 0, 4);
+		if(n <= 0) return false;
+		Utils.readFully(in, blockSize, n, 4 - n);
+		int size = getInt(blockSize, 0);
+		if(size < FIXED_SIZE || size > MAX_SIZE) throw new IOException("Invalid BAM record size: " + size);
+		Utils.readFully(in, data, 0, FIXED_SIZE);
+		// Sanity checks (reading from a wrong offset should fail here, before allocating the record)
+		int l_seq = getReadLength();
+		int refIndex = getReferenceIndex();
+		int mateRefIndex = getMateReferenceIndex();
+		if(refIndex < -1 || refIndex >= nbReferences || mateRefIndex < -1 || mateRefIndex >= nbReferences || getReadNameLength() == 0 || l_seq < 0 || FIXED_SIZE + getReadNameLength() + 4L * getStoredCigarLength() + (l_seq + 1L) / 2 + l_seq > size) throw new IOException("Invalid BAM record");
+		if(size > data.length) data = Arrays.copyOf(data, Math.max(size, data.length * 2)); // Keeps the fixed part
+		this.length = size;
+		this.nbCigarOps = -1;
+		this.alignmentEnd = -1;
+		this.scannedTags = null;
+		return true;
+	}
+
+	/**
+	 * Read the rest of the record (name, CIGAR, sequence, qualities and tags), after readHeader()
+	 */
+	public void readBody(InputStream in) throws IOException
+	{
+		Utils.readFully(in, data, FIXED_SIZE, length - FIXED_SIZE);
+	}
+
+	/**
+	 * Skip the rest of the record, after readHeader(). Only the fixed fields can be used then
+	 */
+	public void skipBody(InputStream in) throws IOException
+	{
+		Utils.skipFully(in, length - FIXED_SIZE);
+	}
+
+	public int getReferenceIndex()
+	{
+		return getInt(data, 0);
+	}
+
+	public String getReferenceName()
+	{
+		int refIndex = getReferenceIndex();
+		if(refIndex == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) return SAMRecord.NO_ALIGNMENT_REFERENCE_NAME;
+		return header.getSequence(refIndex).getSequenceName();
+	}
+
+	/**
+	 * @return 1-based position
+	 */
+	public int getAlignmentStart()
+	{
+		return getInt(data, 4) + 1;
+	}
+
+	/**
+	 * @return 1-based position of the last aligned base (same as htsjdk)
+	 */
+	public int getAlignmentEnd()
+	{
+		if(alignmentEnd == -1)
+		{
+			int[] ops = getCigar();
+			int l = 0;
+			for(int i = 0; i < nbCigarOps; i++)
+			{
+				switch(ops[i] & 0xf)
+				{
+					case CIGAR_M: case CIGAR_D: case CIGAR_N: case CIGAR_EQ: case CIGAR_X:
+						l += ops[i] >>> 4;
+				}
+			}
+			alignmentEnd = getAlignmentStart() + l - 1;
+		}
+		return alignmentEnd;
+	}
+
+	public int getMateReferenceIndex()
+	{
+		return getInt(data, 20);
+	}
+
+	/**
+	 * @return 1-based position of the mate
+	 */
+	public int getMateAlignmentStart()
+	{
+		return getInt(data, 24) + 1;
+	}
+
+	private int getReadNameLength()
+	{
+		return data[8] & 0xff; // Includes trailing NUL
+	}
+
+	public int getMappingQuality()
+	{
+		return data[9] & 0xff;
+	}
+
+	private int getStoredCigarLength()
+	{
+		return getUShort(data, 12);
+	}
+
+	public int getFlags()
+	{
+		return getUShort(data, 14);
+	}
+
+	private int getReadLength()
+	{
+		return getInt(data, 16);
+	}
+
+	public String getReadName()
+	{
+		return StringUtil.bytesToString(data, FIXED_SIZE, getReadNameLength() - 1);
+	}
+
+	/**
+	 * @return offset of the read name in getData()
+	 */
+	public int getReadNameOffset()
+	{
+		return FIXED_SIZE;
+	}
+
+	/**
+	 * @return number of bytes of the read name (without the trailing NUL)
+	 */
+	public int getReadNameSize()
+	{
+		return getReadNameLength() - 1;
+	}
+
+	/**
+	 * @return raw CIGAR operations (only the first getCigarLength() are valid). Do not modify, the array is reused.
+	 */
+	public int[] getCigar()
+	{
+		if(nbCigarOps == -1)
+		{
+			int n = getStoredCigarLength();
+			int off = FIXED_SIZE + getReadNameLength();
+			if(n > cigar.length) cigar = new int[Math.max(n, cigar.length * 2)];
+			for(int i = 0; i < n; i++) cigar[i] = getInt(data, off + 4 * i);
+			nbCigarOps = n;
+			// Reads with more than 65535 operations store a placeholder kSmN CIGAR, the real one being in the CG tag
+			if(n == 2 && (cigar[0] & 0xf) == CIGAR_S && (cigar[0] >>> 4) == getReadLength() && (cigar[1] & 0xf) == CIGAR_N)
+			{
+				int tag = findTag('C', 'G');
+				if(tag != -1 && data[tag + 2] == 'B' && (data[tag + 3] == 'I' || data[tag + 3] == 'i'))
+				{
+					int count = getInt(data, tag + 4);
+					if(count > cigar.length) cigar = new int[count];
+					for(int i = 0; i < count; i++) cigar[i] = getInt(data, tag + 8 + 4 * i);
+					nbCigarOps = count;
+				}
+			}
+		}
+		return cigar;
+	}
+
+	public int getCigarLength()
+	{
+		getCigar();
+		return nbCigarOps;
+	}
+
+	/**
+	 * @return value of a String ('Z' or 'A') tag, or null if not found
+	 */
+	public String getStringAttribute(String tag)
+	{
+		int off = findTag(tag.charAt(0), tag.charAt(1));
+		if(off == -1) return null;
+		byte type = data[off + 2];
+		off += 3;
+		if(type == 'A') return String.valueOf((char)data[off]);
+		if(type != 'Z') return null;
+		int end = off;
+		while(data[end] != 0) end++;
+		return StringUtil.bytesToString(data, off, end - off);
+	}
+
+	/**
+	 * Find all the given String ('Z' or 'A') tags in one pass over the tags of the record. Does nothing if already done for this record
+	 * @param tags tag names encoded by encodeTag()
+	 */
+	public void scanTags(short[] tags)
+	{
+		if(scannedTags == tags) return;
+		if(tagOffsets.length < tags.length)
+		{
+			tagOffsets = new int[tags.length];
+			tagLengths = new int[tags.length];
+		}
+		for(int i = 0; i < tags.length; i++) tagOffsets[i] = -1;
+		int remaining = tags.length;
+		int off = getTagsOffset();
+		while(remaining > 0 && off + 3 <= length)
+		{
+			short tag = (short)((data[off] & 0xff) | ((data[off + 1] & 0xff) << 8));
+			byte type = data[off + 2];
+			for(int i = 0; i < tags.length; i++)
+			{
+				if(tags[i] == tag && tagOffsets[i] == -1)
+				{
+					if(type == 'Z')
+					{
+						int end = off + 3;
+						while(data[end] != 0) end++;
+						tagOffsets[i] = off + 3;
+						tagLengths[i] = end - off - 3;
+						remaining--;
+					}
+					else if(type == 'A')
+					{
+						tagOffsets[i] = off + 3;
+						tagLengths[i] = 1;
+						remaining--;
+					}
+				}
+			}
+			off = skipTag(off);
+		}
+		scannedTags = tags;
+	}
+
+	/**
+	 * @return offset of the value of the i-th tag given to scanTags(), or -1 if not found
+	 */
+	public int getScannedTagOffset(int i)
+	{
+		return tagOffsets[i];
+	}
+
+	public int getScannedTagLength(int i)
+	{
+		return tagLengths[i];
+	}
+
+	/**
+	 * @return raw bytes of the record (without block_size). Do not modify, the array is reused.
+	 */
+	public byte[] getData()
+	{
+		return data;
+	}
+
+	public static short encodeTag(String tag)
+	{
+		return (short)((tag.charAt(0) & 0xff) | ((tag.charAt(1) & 0xff) << 8));
+	}
+
+	private int getTagsOffset()
+	{
+		int l_seq = getReadLength();
+		return FIXED_SIZE + getReadNameLength() + 4 * getStoredCigarLength() + (l_seq + 1) / 2 + l_seq;
+	}
+
+	/**
+	 * @return offset of the tag in the record (i.e. of its 2 letters), or -1 if not found
+	 */
+	private int findTag(char c1, char c2)
+	{
+		int off = getTagsOffset();
+		while(off + 3 <= length)
+		{
+			if(data[off] == c1 && data[off + 1] == c2) return off;
+			off = skipTag(off);
+		}
+		return -1;
+	}
+
+	/**
+	 * @return offset of the tag following the one at offset off
+	 */
+	private int skipTag(int off)
+	{
+		byte type = data[off + 2];
+		off += 3;
+		switch(type)
+		{
+			case 'A': case 'c': case 'C': return off + 1;
+			case 's': case 'S': return off + 2;
+			case 'i': case 'I': case 'f': return off + 4;
+			case 'Z': case 'H':
+				while(data[off] != 0) off++;
+				return off + 1;
+			case 'B':
+				byte subtype = data[off];
+				int count = getInt(data, off + 1);
+				off += 5;
+				switch(subtype)
+				{
+					case 'c': case 'C': return off + count;
+					case 's': case 'S': return off + 2 * count;
+					default: return off + 4 * count;
+				}
+			default:
+				return length; // Unknown type, cannot continue
+		}
+	}
+
+	public boolean getReadPairedFlag() { return (getFlags() & 0x1) != 0; }
+	public boolean getProperPairFlag() { return (getFlags() & 0x2) != 0; }
+	public boolean getReadUnmappedFlag() { return (getFlags() & 0x4) != 0; }
+	public boolean getMateUnmappedFlag() { return (getFlags() & 0x8) != 0; }
+	public boolean getReadNegativeStrandFlag() { return (getFlags() & 0x10) != 0; }
+	public boolean getFirstOfPairFlag() { return (getFlags() & 0x40) != 0; }
+	public boolean isSecondaryOrSupplementary() { return (getFlags() & 0x900) != 0; }
+	public boolean getDuplicateReadFlag() { return (getFlags() & 0x400) != 0; }
+
+	/**
+	 * @return CIGAR String, for error messages
+	 */
+	public static String cigarToString(int[] cigar, int nbCigarOps)
+	{
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < nbCigarOps; i++) sb.append(cigar[i] >>> 4).append(CIGAR_CHARS[cigar[i] & 0xf]);
+		return sb.toString();
+	}
+
+	private static int getUShort(byte[] b, int off)
+	{
+		return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8);
+	}
+
+	private static int getInt(byte[] b, int off)
+	{
+		return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) | ((b[off + 2] & 0xff) << 16) | ((b[off + 3] & 0xff) << 24);
+	}
+}
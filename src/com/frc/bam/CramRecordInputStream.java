@@ -0,0 +1,188 @@
+package com.frc.bam;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.frc.parameters.Parameters;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.cram.build.CRAMReferenceRegion;
+import htsjdk.samtools.cram.common.CRAMVersion;
+import htsjdk.samtools.cram.io.CountingInputStream;
+import htsjdk.samtools.cram.ref.CRAMReferenceSource;
+import htsjdk.samtools.cram.ref.ReferenceSource;
+import htsjdk.samtools.cram.structure.CRAMCompressionRecord;
+import htsjdk.samtools.cram.structure.CompressorCache;
+import htsjdk.samtools.cram.structure.Container;
+import htsjdk.samtools.cram.structure.Slice;
+import htsjdk.samtools.util.LocationAware;
+
+/**
+ * Records of a CRAM file, encoded as BAM records, so that CRAM files are read by the same code as BAM files (see BamRecordView)
+ * Records are decoded one slice at a time, when the previous slice was entirely read. Bases are restored from the reference of --reference (shared by all streams)
+ * The stream is LocationAware: the "virtual offset" of a record is the byte offset of its container << 16 | the index of its slice in the container (as in CRAM indexes)
+ */
+public class CramRecordInputStream extends InputStream implements LocationAware
+{
+	private static CRAMReferenceSource referenceSource = null;
+
+	private final BufferedInputStream raw;
+	private final CountingInputStream in;
+	private final long offset; // Byte offset of the start of the stream in the file
+	private final CRAMVersion version;
+	private final SAMFileHeader header;
+	private final CRAMReferenceRegion reference;
+	private final CompressorCache compressors = new CompressorCache();
+	private final BAMRecordCodec codec;
+	private final RecordBuffer buffer = new RecordBuffer(); // BAM records of the current slice
+	private int pos = 0; // Next byte of the buffer
+
+	private List<Slice> slices = null; // Of the current container
+	private int nextSlice;
+	private long containerOffset;
+	private long nextContainerOffset;
+	private boolean eof = false;
+
+	/**
+	 * @param in stream at the start of a container
+	 * @param offset byte offset of this container in the file
+	 * @param firstSlice index of the first slice to read in this container (the previous ones are skipped)
+	 */
+	public CramRecordInputStream(final InputStream in, final long offset, final int firstSlice, final CRAMVersion version, final SAMFileHeader header)
+	{
+		this.raw = (in instanceof BufferedInputStream)?(BufferedInputStream)in:new BufferedInputStream(in, 1 << 16);
+		this.in = new CountingInputStream(this.raw);
+		this.offset = offset;
+		this.nextContainerOffset = offset;
+		this.nextSlice = firstSlice;
+		this.version = version;
+		this.header = header;
+		this.reference = new CRAMReferenceRegion(getReferenceSource(), header);
+		this.codec = new BAMRecordCodec(header);
+		this.codec.setOutputStream(this.buffer);
+	}
+
+	/**
+	 * @return the reference of --reference, or the default one of htsjdk (REF_PATH, samjdk.reference_fasta...) if none was given
+	 */
+	private static synchronized CRAMReferenceSource getReferenceSource()
+	{
+		if(referenceSource == null) referenceSource = (Parameters.referenceFile != null)?new ReferenceSource(Parameters.referenceFile):ReferenceSource.getDefaultCRAMReferenceSource();
+		return referenceSource;
+	}
+
+	@Override
+	public long getPosition()
+	{
+		if(pos < buffer.size()) return (containerOffset << 16) | (nextSlice - 1);
+		if(slices == null || nextSlice < slices.size()) return ((slices == null)?(nextContainerOffset << 16):(containerOffset << 16)) | nextSlice;
+		return nextContainerOffset << 16;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		if(!fill()) return -1;
+		return buffer.bytes()[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len) throws IOException
+	{
+		if(len == 0) return 0;
+		if(!fill()) return -1;
+		int n = Math.min(len, buffer.size() - pos);
+		System.arraycopy(buffer.bytes(), pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		in.close();
+	}
+
+	/**
+	 * Decode the next slice(s) if the current one was read
+	 * @return false at the end of the file
+	 */
+	private boolean fill() throws IOException
+	{
+		try
+		{
+			while(pos == buffer.size())
+			{
+				if(slices != null && nextSlice < slices.size())
+				{
+					decode(slices.get(nextSlice++));
+					continue;
+				}
+				if(eof || !nextContainer()) return false;
+			}
+			return true;
+		}
+		catch(RuntimeException e) // htsjdk reports invalid files and missing references as runtime exceptions
+		{
+			throw new IOException("Cannot decode the CRAM container at byte " + containerOffset + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Read the next container
+	 * @return false if there is none (EOF container, or end of the stream)
+	 */
+	private boolean nextContainer() throws IOException
+	{
+		raw.mark(1);
+		boolean empty = raw.read() == -1;
+		raw.reset();
+		if(!empty)
+		{
+			containerOffset = nextContainerOffset;
+			Container container = new Container(version, in, containerOffset);
+			nextContainerOffset = offset + in.getCount();
+			if(!container.isEOF())
+			{
+				if(slices != null) nextSlice = 0; // Only the first container may start after its first slice
+				slices = container.getSlices();
+				return true;
+			}
+		}
+		eof = true;
+		slices = null;
+		nextSlice = 0;
+		return false;
+	}
+
+	private void decode(final Slice slice)
+	{
+		buffer.reset();
+		pos = 0;
+		ArrayList<CRAMCompressionRecord> records = slice.deserializeCRAMRecords(compressors, ValidationStringency.SILENT);
+		slice.normalizeCRAMRecords(records, reference); // Restore the bases and the mates
+		for(CRAMCompressionRecord record:records) codec.encode(record.toSAMRecord(header));
+	}
+
+	/**
+	 * Gives access to its bytes without copying them
+	 */
+	private static class RecordBuffer extends ByteArrayOutputStream
+	{
+		RecordBuffer()
+		{
+			super(1 << 20);
+		}
+
+		byte[] bytes()
+		{
+			return buf;
+		}
+	}
+}
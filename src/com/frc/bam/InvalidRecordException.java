@@ -0,0 +1,17 @@
+package com.frc.bam;
+
+import java.io.IOException;
+
+/**
+ * A record that cannot be counted with the options of the run (e.g. a single-end read with --paired, or a barcode/gene that is not in the lists)
+ * It is thrown while counting instead of stopping the run, because a job started on a misdetected boundary reads garbage records: the scheduler then reads it again from the true boundary (see JobDispatcher)
+ */
+public class InvalidRecordException extends IOException
+{
+	private static final long serialVersionUID = 1L;
+
+	public InvalidRecordException(String message)
+	{
+		super(message);
+	}
+}
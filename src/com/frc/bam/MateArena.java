@@ -0,0 +1,287 @@
+package com.frc.bam;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import htsjdk.samtools.util.StringUtil;
+
+/**
+ * Reads waiting for their mate, packed in primitive arrays instead of Read objects (~50 bytes per read plus its name and CIGAR, instead of several hundreds with the Strings, the CIGAR array and the HashMap entry)
+ * Reads are indexed by a 64-bit hash of their name (open addressing, linear probing). The names are stored too, so that colliding names are told apart
+ * Each read is a record of ints in the arena, followed by its CIGAR operations. The space of the removed records is reclaimed by compacting the arena when it is full
+ */
+class MateArena
+{
+	// Layout of a record
+	private static final int NAME = 0; // Offset of the name in names
+	private static final int NAME_LENGTH = 1;
+	private static final int ORDER = 2; // long
+	private static final int BARCODE = 4; // Index in barcodes
+	private static final int REFERENCE = 5;
+	private static final int START = 6;
+	private static final int END = 7;
+	private static final int FLAGS = 8; // mapQ | strand << 8 | firstOfPair << 9 | (UMI length + 1) << 10
+	private static final int GENE = 9;
+	private static final int UMI = 10; // long
+	private static final int NB_CIGAR_OPS = 12;
+	private static final int CIGAR = 13;
+
+	// Hash table: name hash => record
+	private long[] keys = new long[16];
+	private int[] slots = new int[16]; // Offset of the record + 1, 0 = empty slot
+	private int size = 0;
+
+	private int[] records = new int[1024];
+	private int recordsEnd = 0;
+	private int wasted = 0; // Ints used by removed records
+	private byte[] names = new byte[4096];
+	private int namesEnd = 0;
+
+	// The few Strings of the reads are stored once
+	private final ArrayList<String> barcodes = new ArrayList<String>();
+	private final HashMap<String, Integer> barcodeIndexes = new HashMap<String, Integer>();
+	private String[] referenceNames = new String[0];
+
+	/**
+	 * @return 64-bit hash of a read name
+	 */
+	static long hash(byte[] name, int off, int len)
+	{
+		long h = 0xcbf29ce484222325L; // FNV-1a 64
+		for(int i = off; i < off + len; i++) h = (h ^ (name[i] & 0xff)) * 0x100000001b3L;
+		return h ^ (h >>> 29);
+	}
+
+	/**
+	 * @return same hash as hash(byte[]) for this name (read names are ASCII)
+	 */
+	static long hash(String name)
+	{
+		long h = 0xcbf29ce484222325L;
+		for(int i = 0; i < name.length(); i++) h = (h ^ name.charAt(i)) * 0x100000001b3L;
+		return h ^ (h >>> 29);
+	}
+
+	int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return slot of the read of this name, or -1 if there is none
+	 */
+	int find(long h, byte[] name, int off, int len)
+	{
+		int mask = slots.length - 1;
+		for(int i = home(h); slots[i] != 0; i = (i + 1) & mask)
+		{
+			if(keys[i] == h && sameName(slots[i] - 1, name, off, len)) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return true if a read has this name hash (maybe another name, if they collide)
+	 */
+	boolean contains(long h)
+	{
+		int mask = slots.length - 1;
+		for(int i = home(h); slots[i] != 0; i = (i + 1) & mask) if(keys[i] == h) return true;
+		return false;
+	}
+
+	/**
+	 * @return slot of the read of this name hash and order, or -1 if there is none
+	 */
+	int find(long h, long order)
+	{
+		int mask = slots.length - 1;
+		for(int i = home(h); slots[i] != 0; i = (i + 1) & mask)
+		{
+			if(keys[i] == h && getLong(slots[i] - 1 + ORDER) == order) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Add a read. Its name should not be in the arena already
+	 */
+	void add(long h, byte[] name, int off, int len, Read read)
+	{
+		if(4 * (size + 1) > 3 * slots.length) resize(slots.length * 2);
+		int n = CIGAR + read.nbCigarOps;
+		if((recordsEnd + n > records.length || namesEnd + len > names.length) && wasted > recordsEnd / 2) compact(); // Rather than growing
+		if(recordsEnd + n > records.length) records = Arrays.copyOf(records, Math.max(recordsEnd + n, records.length * 2));
+		if(namesEnd + len > names.length) names = Arrays.copyOf(names, Math.max(namesEnd + len, names.length * 2));
+
+		int r = recordsEnd;
+		System.arraycopy(name, off, names, namesEnd, len);
+		records[r + NAME] = namesEnd;
+		records[r + NAME_LENGTH] = len;
+		setLong(r + ORDER, read.order);
+		records[r + BARCODE] = indexOf(read.barcode);
+		records[r + REFERENCE] = read.referenceIndex;
+		records[r + START] = read.startV;
+		records[r + END] = read.endV;
+		records[r + FLAGS] = read.mapQ | (read.negativeStrandFlag?0x100:0) | (read.firstOfPair?0x200:0) | ((read.UMILength + 1) << 10);
+		records[r + GENE] = read.geneIndex;
+		setLong(r + UMI, read.packedUMI);
+		records[r + NB_CIGAR_OPS] = read.nbCigarOps;
+		System.arraycopy(read.cigar, 0, records, r + CIGAR, read.nbCigarOps);
+		if(read.referenceIndex >= referenceNames.length) referenceNames = Arrays.copyOf(referenceNames, read.referenceIndex + 1);
+		referenceNames[read.referenceIndex] = read.chr;
+		recordsEnd += n;
+		namesEnd += len;
+
+		int mask = slots.length - 1;
+		int i = home(h);
+		while(slots[i] != 0) i = (i + 1) & mask;
+		keys[i] = h;
+		slots[i] = r + 1;
+		size++;
+	}
+
+	/**
+	 * Remove the read of this slot (see find())
+	 */
+	void remove(int slot)
+	{
+		int r = slots[slot] - 1;
+		wasted += CIGAR + records[r + NB_CIGAR_OPS];
+		size--;
+		// Backward shift deletion (no tombstone): the next reads of the cluster are moved back if the freed slot is between their home and them
+		int mask = slots.length - 1;
+		int i = slot;
+		for(int j = (i + 1) & mask; slots[j] != 0; j = (j + 1) & mask)
+		{
+			int k = home(keys[j]);
+			if((j > i)?(k <= i || k > j):(k <= i && k > j))
+			{
+				keys[i] = keys[j];
+				slots[i] = slots[j];
+				i = j;
+			}
+		}
+		slots[i] = 0;
+		if(size == 0) recordsEnd = namesEnd = wasted = 0;
+	}
+
+	/**
+	 * @param withName also decode the name of the read (not needed for counting it)
+	 * @return the read of this slot
+	 */
+	Read toRead(int slot, boolean withName)
+	{
+		int r = slots[slot] - 1;
+		int flags = records[r + FLAGS];
+		int[] cigar = Arrays.copyOfRange(records, r + CIGAR, r + CIGAR + records[r + NB_CIGAR_OPS]);
+		Read read = new Read(referenceNames[records[r + REFERENCE]], records[r + START], records[r + END], cigar, (flags & 0x100) != 0, flags & 0xff, records[r + GENE], (flags & 0x200) != 0);
+		read.referenceIndex = records[r + REFERENCE];
+		read.order = getLong(r + ORDER);
+		read.barcode = barcodes.get(records[r + BARCODE]);
+		read.packedUMI = getLong(r + UMI);
+		read.UMILength = (flags >>> 10) - 1;
+		if(withName) read.name = StringUtil.bytesToString(names, records[r + NAME], records[r + NAME_LENGTH]);
+		return read;
+	}
+
+	/**
+	 * @return all reads, with their names
+	 */
+	ArrayList<Read> toReads()
+	{
+		ArrayList<Read> reads = new ArrayList<Read>(size);
+		for(int i = 0; i < slots.length; i++) if(slots[i] != 0) reads.add(toRead(i, true));
+		return reads;
+	}
+
+	void clear()
+	{
+		if(size == 0) return;
+		Arrays.fill(slots, 0);
+		size = recordsEnd = namesEnd = wasted = 0;
+	}
+
+	private int home(long h)
+	{
+		return (int)((h * 0x9E3779B97F4A7C15L) >>> 32) & (slots.length - 1);
+	}
+
+	private boolean sameName(int r, byte[] name, int off, int len)
+	{
+		if(records[r + NAME_LENGTH] != len) return false;
+		int n = records[r + NAME];
+		for(int i = 0; i < len; i++) if(names[n + i] != name[off + i]) return false;
+		return true;
+	}
+
+	private int indexOf(String barcode)
+	{
+		Integer index = barcodeIndexes.get(barcode);
+		if(index == null)
+		{
+			index = barcodes.size();
+			barcodes.add(barcode);
+			barcodeIndexes.put(barcode, index);
+		}
+		return index;
+	}
+
+	private long getLong(int off)
+	{
+		return ((long)records[off] << 32) | (records[off + 1] & 0xffffffffL);
+	}
+
+	private void setLong(int off, long value)
+	{
+		records[off] = (int)(value >>> 32);
+		records[off + 1] = (int)value;
+	}
+
+	private void resize(int capacity)
+	{
+		long[] oldKeys = keys;
+		int[] oldSlots = slots;
+		keys = new long[capacity];
+		slots = new int[capacity];
+		int mask = capacity - 1;
+		for(int j = 0; j < oldSlots.length; j++)
+		{
+			if(oldSlots[j] == 0) continue;
+			int i = home(oldKeys[j]);
+			while(slots[i] != 0) i = (i + 1) & mask;
+			keys[i] = oldKeys[j];
+			slots[i] = oldSlots[j];
+		}
+	}
+
+	/**
+	 * Move the records (and names) of the reads still in the arena to its beginning
+	 */
+	private void compact()
+	{
+		int[] newRecords = new int[records.length];
+		byte[] newNames = new byte[names.length];
+		int end = 0;
+		int namesEnd = 0;
+		for(int i = 0; i < slots.length; i++)
+		{
+			if(slots[i] == 0) continue;
+			int r = slots[i] - 1;
+			int n = CIGAR + records[r + NB_CIGAR_OPS];
+			int len = records[r + NAME_LENGTH];
+			System.arraycopy(records, r, newRecords, end, n);
+			System.arraycopy(names, records[r + NAME], newNames, namesEnd, len);
+			newRecords[end + NAME] = namesEnd;
+			slots[i] = end + 1;
+			end += n;
+			namesEnd += len;
+		}
+		this.records = newRecords;
+		this.names = newNames;
+		this.recordsEnd = end;
+		this.namesEnd = namesEnd;
+		this.wasted = 0;
+	}
+}
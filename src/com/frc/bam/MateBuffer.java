@@ -0,0 +1,591 @@
+package com.frc.bam;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+import com.errors.ErrorMessage;
+import com.frc.parameters.Parameters;
+import com.frc.parameters.ResultStruct;
+
+import gnu.trove.list.array.TIntArrayList;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileHeader.GroupOrder;
+import htsjdk.samtools.SAMFileHeader.SortOrder;
+import htsjdk.samtools.util.StringUtil;
+
+/**
+ * Reads waiting for their mate, by read name. They are packed in a MateArena, and only turned back to Read objects when their mate is found
+ * In parallel mode, each partition of the BAM file has its own buffer. Reads left in it at the end (their mate is in another partition) are paired afterwards, in the order of the partitions, in another buffer (see takeMate(Read)).
+ * For that, the buffer also logs the pairs made inside the partition: when a read of the previous partitions waits for one of their names (multiple mapped reads), they are undone and only their reads are paired again (see undoPairs)
+ * When reading as one thread, and for the reads left by the partitions, the buffer can be bounded: when it is full, its reads are spilled to disk (sorted by name), and paired at the end by merging the spilled runs
+ */
+public class MateBuffer
+{
+	private static final int BLOOM_BITS_PER_READ = 16; // Bits of the Bloom filter per spilled read, at least (it grows with them, see mergeRuns)
+	private static final int BLOOM_HASHES = 6; // ~0.1% of false positives with 16 bits per read
+	private static final int MAX_BLOOM_SIZE = 1 << 27; // Longs (1 GB), the filter does not grow beyond
+	private static final int MAX_RUNS = 128; // Max number of runs opened at once when merging
+	private static final Comparator<Read> BY_NAME_AND_ORDER = new Comparator<Read>()
+	{
+		@Override
+		public int compare(Read r1, Read r2)
+		{
+			int c = r1.name.compareTo(r2.name);
+			if(c != 0) return c;
+			return Long.compare(r1.order, r2.order);
+		}
+	};
+	
+	private static final Comparator<Read> BY_ORDER = new Comparator<Read>()
+	{
+		@Override
+		public int compare(Read r1, Read r2)
+		{
+			return Long.compare(r1.order, r2.order);
+		}
+	};
+	
+	private final MateArena buffer = new MateArena();
+	private PairLog pairs = null; // Pairs made in this buffer (partitions)
+	private long recordNumber = 0; // Number of the current record in the partition, orders its reads (see setRecordNumber)
+	
+	// Pairing strategy depending on the order of the BAM file (when reading it as one thread)
+	private PairingOrder pairingOrder = PairingOrder.ANY;
+	private PositionQueue byMatePosition = null; // Buffered reads, by position of their mate (coordinate order)
+	
+	// Spilling to disk
+	private int maxSize = 0; // 0 = never spill
+	private long nbReads = 0; // Order of the buffered reads (also identifies them in byMatePosition)
+	private ArrayList<Read> deferred = null; // Reads whose mate may have been spilled (paired when merging the runs), or whose pair was undone (see undoPairs). They are not paired in memory
+	private long[] spilledNames = null; // Bloom filter of the spilled names, grown with them (false positives only defer the pairing, or undo a pair of a partition)
+	private long nbSpilled = 0; // Reads in the runs
+	private ArrayList<File> runs = null; // Spilled reads, sorted by name then order
+
+	/**
+	 * @param logPairs log the pairs, and the UMIs they count (for partitions, see undoPairs)
+	 */
+	public MateBuffer(boolean logPairs)
+	{
+		if(logPairs) this.pairs = new PairLog();
+	}
+	
+	/**
+	 * Spill the buffered reads to disk when there are more than maxSize of them
+	 */
+	public void enableSpilling(int maxSize)
+	{
+		this.maxSize = maxSize;
+		this.deferred = new ArrayList<Read>();
+		this.runs = new ArrayList<File>();
+		this.spilledNames = newFilter(maxSize);
+	}
+
+	/**
+	 * Use the order of the BAM file for discarding the reads whose mate cannot be found anymore, so that only the pairs opened in the current window are buffered:
+	 * - queryname (or grouped by name): reads of a same name are adjacent, so the buffered read is discarded as soon as another name is found
+	 * - coordinate: a buffered read is discarded when the reading has passed the position of its mate. Only if reads are unique (a name can then be found only twice)
+	 */
+	public void setOrder(SAMFileHeader header)
+	{
+		if(header.getSortOrder() == SortOrder.queryname || header.getGroupOrder() == GroupOrder.query) this.pairingOrder = PairingOrder.NAME;
+		else if(header.getSortOrder() == SortOrder.coordinate && !Parameters.keep_multiple_mapped_reads)
+		{
+			this.pairingOrder = PairingOrder.POSITION;
+			this.byMatePosition = new PositionQueue();
+		}
+		if(this.pairingOrder != PairingOrder.ANY) System.out.println("Reads are paired using the " + ((this.pairingOrder == PairingOrder.NAME)?"read name":"coordinate") + " order of the BAM file");
+	}
+	
+	/**
+	 * Look for the buffered mate of this read. If there is none, this read is buffered instead
+	 * @param barcode barcode of this read
+	 * @return the buffered mate of this read (removed from the buffer), or null if there is none
+	 */
+	public Read takeMate(BamRecordView samRecord, String barcode) throws InvalidRecordException
+	{
+		byte[] data = samRecord.getData();
+		int off = samRecord.getReadNameOffset();
+		int len = samRecord.getReadNameSize();
+		long h = MateArena.hash(data, off, len);
+		if(pairingOrder == PairingOrder.POSITION) evict(samRecord.getReferenceIndex(), samRecord.getAlignmentStart());
+		int slot = isMaybeSpilled(h)?-1:buffer.find(h, data, off, len); // If its mate may be on disk, this read should be buffered too
+		if(pairingOrder == PairingOrder.NAME && slot == -1) buffer.clear(); // A new name: the buffered reads cannot find their mate anymore
+		if(slot != -1)
+		{
+			Read read = buffer.toRead(slot, false);
+			buffer.remove(slot);
+			if(pairs != null) pairs.add(h, read.order, recordNumber);
+			return read;
+		}
+		put(h, data, off, len, samRecord, barcode);
+		return null;
+	}
+
+	/**
+	 * Discard the buffered reads whose mate is before this position (see setOrder)
+	 */
+	private void evict(int referenceIndex, int start)
+	{
+		long position = toPosition(referenceIndex, start);
+		while(!byMatePosition.isEmpty() && byMatePosition.peekPosition() < position)
+		{
+			int slot = buffer.find(byMatePosition.peekHash(), byMatePosition.peekOrder()); // May have been paired or spilled already
+			if(slot != -1) buffer.remove(slot);
+			byMatePosition.poll();
+		}
+	}
+
+	private void put(long h, byte[] name, int off, int len, BamRecordView samRecord, String barcode) throws InvalidRecordException
+	{
+		boolean defer = isMaybeSpilled(h);
+		Read read = BAM.toRead(samRecord, barcode, defer); // Only deferred reads are kept as objects
+		read.order = (pairs != null)?recordNumber:nbReads++;
+		if(pairingOrder == PairingOrder.POSITION) byMatePosition.add(toPosition(read.mateReferenceIndex, read.mateStart), h, read.order);
+		if(defer)
+		{
+			read.name = StringUtil.bytesToString(name, off, len);
+			deferred.add(read);
+		}
+		else buffer.add(h, name, off, len, read);
+		if(maxSize != 0 && buffer.size() + deferred.size() >= maxSize) spill();
+	}
+
+	private static long toPosition(int referenceIndex, int start)
+	{
+		return ((long)referenceIndex << 32) | (start & 0xffffffffL);
+	}
+
+	/**
+	 * Look for the buffered mate of a read left by a partition. If there is none, this read is buffered instead
+	 * @param read with its name. Reads should be given in the order of the BAM file
+	 * @return the buffered mate of this read (removed from the buffer), or null if there is none
+	 */
+	public Read takeMate(Read read)
+	{
+		byte[] name = StringUtil.stringToBytes(read.name);
+		long h = MateArena.hash(name, 0, name.length);
+		boolean defer = isMaybeSpilled(h);
+		int slot = defer?-1:buffer.find(h, name, 0, name.length);
+		if(slot != -1)
+		{
+			Read mate = buffer.toRead(slot, false);
+			buffer.remove(slot);
+			return mate;
+		}
+		read.order = nbReads++;
+		if(defer) deferred.add(read);
+		else buffer.add(h, name, 0, name.length, read);
+		if(maxSize != 0 && buffer.size() + deferred.size() >= maxSize) spill();
+		return null;
+	}
+
+	/**
+	 * Number of the record given next (partitions). Its read is ordered by this number, so that it can be read again (see Job.readRecords)
+	 */
+	public void setRecordNumber(long recordNumber)
+	{
+		this.recordNumber = recordNumber;
+	}
+	
+	/**
+	 * Add the UMI of the pair just made (see BAM.countPair). For partitions, it is only added when the partition is merged (see undoPairs)
+	 */
+	public void addUMI(int indexGene, Read read2, ResultStruct res)
+	{
+		if(pairs != null) pairs.addUMI(res, indexGene, read2.packedUMI, read2.UMILength);
+		else res.addUMI(indexGene, read2.packedUMI, read2.UMILength);
+	}
+	
+	/**
+	 * @param waiting reads of the previous partitions still waiting for their mate
+	 * @return the pairs made in this buffer whose name has a read in waiting (or maybe, see mayContain): it should have been paired with the first read of the name in this partition
+	 */
+	public TIntArrayList findPairs(MateBuffer waiting)
+	{
+		TIntArrayList res = new TIntArrayList();
+		for(int i = 0; i < pairs.size(); i++) if(waiting.mayContain(pairs.getName(i))) res.add(i);
+		return res;
+	}
+	
+	/**
+	 * @return numbers of the two records of each pair, in the partition (see setRecordNumber)
+	 */
+	public long[] getPairRecords(TIntArrayList undone)
+	{
+		return pairs.getRecords(undone);
+	}
+	
+	/**
+	 * Undo these pairs: their counts are removed from the results of the partition, and their reads are orphans again (see getOrphans). Then count the UMIs of the other pairs
+	 * @param undone pairs (see findPairs)
+	 * @param reads the two reads of each pair, read again from the BAM file (see Job.readRecords)
+	 * @param results of the partition
+	 */
+	public void undoPairs(TIntArrayList undone, Read[] reads, HashMap<String, ResultStruct> results)
+	{
+		HashMap<String, ResultStruct> removed = new HashMap<String, ResultStruct>();
+		for(int i = 0; i < undone.size(); i++)
+		{
+			Read read1 = reads[2 * i];
+			Read read2 = reads[2 * i + 1];
+			ResultStruct res = removed.get(read2.barcode);
+			if(res == null)
+			{
+				res = new ResultStruct(results.get(read2.barcode).counts.length, read2.barcode);
+				removed.put(read2.barcode, res);
+			}
+			BAM.countPair(read1, read2, res); // Same counts as when the pair was made
+			if(deferred == null) deferred = new ArrayList<Read>();
+			deferred.add(read1);
+			deferred.add(read2);
+		}
+		for(ResultStruct res:removed.values()) results.get(res.barcode).remove(res);
+		pairs.countUMIs(undone);
+	}
+
+	/**
+	 * @return false if no read of this name hash is waiting in this buffer, true if one is (or maybe, if it was spilled)
+	 */
+	public boolean mayContain(long nameHash)
+	{
+		return buffer.contains(nameHash) || isMaybeSpilled(nameHash);
+	}
+
+	/**
+	 * @return reads still waiting for their mate, in the order of the BAM file
+	 */
+	public ArrayList<Read> getOrphans()
+	{
+		ArrayList<Read> orphans = buffer.toReads();
+		if(deferred != null) orphans.addAll(deferred);
+		Collections.sort(orphans, BY_ORDER);
+		return orphans;
+	}
+	
+	/**
+	 * Pair the reads that were spilled to disk (and the ones still in memory), by merging the runs. Reads of a same name are paired in the order of the BAM file, as they would have been in memory
+	 * Reads left without mate are discarded
+	 */
+	public void pairSpilled(HashMap<String, ResultStruct> results)
+	{
+		if(runs == null || runs.isEmpty()) return;
+		spill(); // Last run
+		System.out.println("Pairing the reads that were spilled to disk (" + runs.size() + " runs)");
+		try
+		{
+			PriorityQueue<RunReader> queue = openRuns();
+			Read previous = null;
+			while(!queue.isEmpty())
+			{
+				RunReader reader = queue.poll();
+				Read read = reader.current;
+				if(reader.next()) queue.add(reader);
+				if(previous != null && previous.name.equals(read.name)) // Mates
+				{
+					BAM.processPair(previous, read, results.get(read.barcode));
+					previous = null;
+				}
+				else previous = read;
+			}
+		}
+		catch(IOException ioe)
+		{
+			new ErrorMessage("Cannot read the buffered mates spilled to disk: " + ioe.getMessage());
+		}
+		for(File run:runs) run.delete();
+		runs.clear();
+		spilledNames = newFilter(maxSize); // Nothing is spilled anymore
+		nbSpilled = 0;
+	}
+	
+	/**
+	 * Write all buffered reads in a new run, sorted by name then order
+	 */
+	private void spill()
+	{
+		ArrayList<Read> reads = buffer.toReads();
+		reads.addAll(deferred);
+		Collections.sort(reads, BY_NAME_AND_ORDER);
+		try
+		{
+			File run = File.createTempFile("frc_mates_", ".tmp");
+			run.deleteOnExit();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+			out.writeInt(reads.size());
+			for(Read read:reads)
+			{
+				write(out, read);
+				addSpilledName(read.name);
+			}
+			out.close();
+			runs.add(run);
+			nbSpilled += reads.size();
+			boolean filterFull = nbSpilled * BLOOM_BITS_PER_READ > spilledNames.length * 64L && spilledNames.length < MAX_BLOOM_SIZE;
+			if(runs.size() >= MAX_RUNS || filterFull) mergeRuns();
+		}
+		catch(IOException ioe)
+		{
+			new ErrorMessage("Cannot spill the buffered mates to disk: " + ioe.getMessage());
+		}
+		buffer.clear();
+		deferred.clear();
+		if(byMatePosition != null) byMatePosition.clear();
+	}
+	
+	/**
+	 * Merge all runs in one (so that the number of opened files stays bounded). The Bloom filter is built again, for twice more names than spilled so far
+	 */
+	private void mergeRuns() throws IOException
+	{
+		File merged = File.createTempFile("frc_mates_", ".tmp");
+		merged.deleteOnExit();
+		PriorityQueue<RunReader> queue = openRuns();
+		int nbReads = 0;
+		for(RunReader reader:queue) nbReads += reader.remaining + 1;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(merged), 1 << 16));
+		out.writeInt(nbReads);
+		spilledNames = newFilter(2L * nbReads);
+		nbSpilled = nbReads;
+		while(!queue.isEmpty())
+		{
+			RunReader reader = queue.poll();
+			write(out, reader.current);
+			addSpilledName(reader.current.name);
+			if(reader.next()) queue.add(reader);
+		}
+		out.close();
+		for(File run:runs) run.delete();
+		runs.clear();
+		runs.add(merged);
+	}
+	
+	/**
+	 * @return readers of all runs, by their current read
+	 */
+	private PriorityQueue<RunReader> openRuns() throws IOException
+	{
+		PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(runs.size(), new Comparator<RunReader>()
+		{
+			@Override
+			public int compare(RunReader r1, RunReader r2)
+			{
+				return BY_NAME_AND_ORDER.compare(r1.current, r2.current);
+			}
+		});
+		for(File run:runs)
+		{
+			RunReader reader = new RunReader(run);
+			if(reader.current != null) queue.add(reader);
+		}
+		return queue;
+	}
+	
+	private boolean isMaybeSpilled(long h)
+	{
+		if(runs == null || runs.isEmpty()) return false;
+		for(int i = 0; i < BLOOM_HASHES; i++)
+		{
+			long bit = bloomBit(h, i);
+			if((spilledNames[(int)(bit >>> 6)] & (1L << bit)) == 0) return false;
+		}
+		return true;
+	}
+	
+	private void addSpilledName(String name)
+	{
+		long h = MateArena.hash(name);
+		for(int i = 0; i < BLOOM_HASHES; i++)
+		{
+			long bit = bloomBit(h, i);
+			spilledNames[(int)(bit >>> 6)] |= 1L << bit;
+		}
+	}
+	
+	/**
+	 * @return empty Bloom filter for this number of reads
+	 */
+	private static long[] newFilter(long nbReads)
+	{
+		return new long[(int)Math.max(Math.min(nbReads * BLOOM_BITS_PER_READ / 64, MAX_BLOOM_SIZE), 1 << 14)];
+	}
+	
+	/**
+	 * @return i-th bit of the Bloom filter for this hash (BLOOM_HASHES hash functions derived from one 64-bit hash)
+	 */
+	private long bloomBit(long h, int i)
+	{
+		return Math.floorMod(h + i * ((h >>> 32) | 1), spilledNames.length * 64L);
+	}
+	
+	private static void write(DataOutputStream out, Read read) throws IOException
+	{
+		out.writeUTF(read.name);
+		out.writeLong(read.order);
+		out.writeUTF(read.barcode);
+		out.writeInt(read.referenceIndex);
+		out.writeUTF(read.chr);
+		out.writeInt(read.startV);
+		out.writeInt(read.endV);
+		out.writeInt(read.nbCigarOps);
+		for(int i = 0; i < read.nbCigarOps; i++) out.writeInt(read.cigar[i]);
+		out.writeBoolean(read.negativeStrandFlag);
+		out.writeInt(read.mapQ);
+		out.writeInt(read.geneIndex);
+		out.writeBoolean(read.firstOfPair);
+		out.writeLong(read.packedUMI);
+		out.writeInt(read.UMILength);
+	}
+	
+	private static Read read(DataInputStream in) throws IOException
+	{
+		String name = in.readUTF();
+		long order = in.readLong();
+		String barcode = in.readUTF();
+		int referenceIndex = in.readInt();
+		String chr = in.readUTF();
+		int start = in.readInt();
+		int end = in.readInt();
+		int[] cigar = new int[in.readInt()];
+		for(int i = 0; i < cigar.length; i++) cigar[i] = in.readInt();
+		boolean negativeStrandFlag = in.readBoolean();
+		int mapQ = in.readInt();
+		int geneIndex = in.readInt();
+		Read read = new Read(chr, start, end, cigar, negativeStrandFlag, mapQ, geneIndex, in.readBoolean());
+		read.name = name;
+		read.order = order;
+		read.referenceIndex = referenceIndex;
+		read.barcode = barcode;
+		read.packedUMI = in.readLong();
+		read.UMILength = in.readInt();
+		return read;
+	}
+
+	private enum PairingOrder { ANY, NAME, POSITION }
+	
+	/**
+	 * Min-heap of the buffered reads by position of their mate. Reads are identified by their name hash and order (they may have left the buffer since)
+	 */
+	private static class PositionQueue
+	{
+		private long[] positions = new long[64];
+		private long[] hashes = new long[64];
+		private long[] orders = new long[64];
+		private int size = 0;
+		
+		boolean isEmpty()
+		{
+			return size == 0;
+		}
+		
+		long peekPosition()
+		{
+			return positions[0];
+		}
+		
+		long peekHash()
+		{
+			return hashes[0];
+		}
+		
+		long peekOrder()
+		{
+			return orders[0];
+		}
+		
+		void add(long position, long hash, long order)
+		{
+			if(size == positions.length)
+			{
+				positions = Arrays.copyOf(positions, size * 2);
+				hashes = Arrays.copyOf(hashes, size * 2);
+				orders = Arrays.copyOf(orders, size * 2);
+			}
+			int i = size++;
+			while(i > 0 && positions[(i - 1) >>> 1] > position)
+			{
+				move((i - 1) >>> 1, i);
+				i = (i - 1) >>> 1;
+			}
+			set(i, position, hash, order);
+		}
+		
+		void poll()
+		{
+			size--;
+			if(size == 0) return;
+			long position = positions[size];
+			int i = 0;
+			while(2 * i + 1 < size)
+			{
+				int child = 2 * i + 1;
+				if(child + 1 < size && positions[child + 1] < positions[child]) child++;
+				if(positions[child] >= position) break;
+				move(child, i);
+				i = child;
+			}
+			set(i, position, hashes[size], orders[size]);
+		}
+		
+		void clear()
+		{
+			size = 0;
+		}
+		
+		private void move(int from, int to)
+		{
+			set(to, positions[from], hashes[from], orders[from]);
+		}
+		
+		private void set(int i, long position, long hash, long order)
+		{
+			positions[i] = position;
+			hashes[i] = hash;
+			orders[i] = order;
+		}
+	}
+	
+	/**
+	 * Reads a spilled run, one read at a time
+	 */
+	private static class RunReader
+	{
+		private final DataInputStream in;
+		private int remaining;
+		Read current = null;
+		
+		RunReader(File run) throws IOException
+		{
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+			this.remaining = in.readInt();
+			next();
+		}
+		
+		/**
+		 * @return false at the end of the run (which is then closed)
+		 */
+		boolean next() throws IOException
+		{
+			if(remaining == 0)
+			{
+				current = null;
+				in.close();
+				return false;
+			}
+			remaining--;
+			current = read(in);
+			return true;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package com.frc.bam;
+
+import java.util.ArrayList;
+
+import com.frc.parameters.ResultStruct;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+
+/**
+ * Pairs made in a partition, in the order they were made: name hash and numbers of the two records in the partition (24 bytes per pair, the reads are not kept)
+ * The UMIs of the pairs are kept here too, and only counted once the partition is merged: some pairs may be undone then (see MateBuffer.undoPairs), and a UMI cannot be removed from the results
+ */
+class PairLog
+{
+	private final TLongArrayList names = new TLongArrayList();
+	private final TLongArrayList records = new TLongArrayList(); // Two per pair
+
+	// UMIs of the pairs that have one
+	private final TIntArrayList umiPairs = new TIntArrayList();
+	private final ArrayList<ResultStruct> umiResults = new ArrayList<ResultStruct>();
+	private final TIntArrayList umiGenes = new TIntArrayList();
+	private final TLongArrayList umis = new TLongArrayList();
+	private final TIntArrayList umiLengths = new TIntArrayList();
+
+	int size()
+	{
+		return names.size();
+	}
+
+	void add(long nameHash, long record1, long record2)
+	{
+		names.add(nameHash);
+		records.add(record1);
+		records.add(record2);
+	}
+
+	/**
+	 * Add the UMI of the last pair (see BAM.countPair)
+	 */
+	void addUMI(ResultStruct res, int indexGene, long umi, int length)
+	{
+		umiPairs.add(names.size() - 1);
+		umiResults.add(res);
+		umiGenes.add(indexGene);
+		umis.add(umi);
+		umiLengths.add(length);
+	}
+
+	long getName(int pair)
+	{
+		return names.get(pair);
+	}
+
+	/**
+	 * @return numbers of the two records of each pair
+	 */
+	long[] getRecords(TIntArrayList pairs)
+	{
+		long[] res = new long[2 * pairs.size()];
+		for(int i = 0; i < pairs.size(); i++)
+		{
+			res[2 * i] = records.get(2 * pairs.get(i));
+			res[2 * i + 1] = records.get(2 * pairs.get(i) + 1);
+		}
+		return res;
+	}
+
+	/**
+	 * Count the UMIs of the pairs
+	 * @param undone sorted pairs whose UMI is not counted
+	 */
+	void countUMIs(TIntArrayList undone)
+	{
+		int u = 0;
+		for(int i = 0; i < umiPairs.size(); i++)
+		{
+			int pair = umiPairs.get(i);
+			while(u < undone.size() && undone.get(u) < pair) u++;
+			if(u < undone.size() && undone.get(u) == pair) continue;
+			umiResults.get(i).addUMI(umiGenes.get(i), umis.get(i), umiLengths.get(i));
+		}
+	}
+}
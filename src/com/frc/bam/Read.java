@@ -1,45 +1,36 @@
 package com.frc.bam;
 
-import htsjdk.samtools.Cigar;
-import htsjdk.samtools.SAMRecord;
-
-public class Read implements Comparable<Read>
+public class Read
 {
 	public String name;
+	public long order; // Order of the read in the BAM file (for reads spilled to disk)
 	public String barcode;
-	public String qualityBC;
-	public String UMI;
-	public String qualityUMI;
-	public String gene;
-	public SAMRecord samRecord;
-	public String start;
-	public String end;
-	public boolean barcodeMatch = false;
 	
-	public Cigar cigar;
+	public int[] cigar; // Raw BAM CIGAR operations
+	public int nbCigarOps; // Only the first nbCigarOps operations of cigar are valid
 	public int startV;
 	public int endV;
+	public int referenceIndex;
 	public String chr;
 	public boolean negativeStrandFlag;
 	public int mapQ;
 	public boolean firstOfPair = false;
+	public int mateReferenceIndex; // For evicting reads whose mate was not found (coordinate-sorted BAM)
+	public int mateStart;
+	public int geneIndex = -1; // From the GX tag, -1 if none
+	public long packedUMI; // UMI packed on 2 bits per nucleotide
+	public int UMILength = -1; // -1 if no UMI
 	
-	public Read(String chr, int start, int end, Cigar c, boolean strand, int mapQ, String gene, String UMI, boolean firstOfPair) 
+	public Read(String chr, int start, int end, int[] c, boolean strand, int mapQ, int geneIndex, boolean firstOfPair) 
 	{
 		this.chr = chr;
 		this.startV = start;
 		this.endV = end;
 		this.cigar = c;
+		this.nbCigarOps = c.length;
 		this.negativeStrandFlag = strand;
 		this.mapQ = mapQ;
-		this.gene = gene;
-		this.UMI = UMI;
+		this.geneIndex = geneIndex;
 		this.firstOfPair = firstOfPair;
 	}
-	
-	@Override
-	public int compareTo(Read r2) 
-	{
-		return this.name.compareTo(r2.name);
-	}
 }
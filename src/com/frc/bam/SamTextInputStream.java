@@ -0,0 +1,427 @@
+package com.frc.bam;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import com.tools.BytesHashMap;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.util.BufferedLineReader;
+import htsjdk.samtools.util.StringUtil;
+
+/**
+ * Stream of the (uncompressed) BAM encoding of the records of a SAM text stream, so that SAM is counted by the same code as BAM (see BamRecordView)
+ * Lines are parsed directly from their bytes: no String is created per record (except for the rare 'f' tags)
+ */
+public class SamTextInputStream extends InputStream
+{
+	private static final byte[] SEQ_CODES = new byte[256]; // 4-bit encoding of the nucleotides
+	private static final byte[] CIGAR_CODES = new byte[256];
+	static
+	{
+		Arrays.fill(SEQ_CODES, (byte)15); // N
+		String nucl = "=ACMGRSVTWYHKDBN";
+		for(int i = 0; i < nucl.length(); i++)
+		{
+			SEQ_CODES[nucl.charAt(i)] = (byte)i;
+			SEQ_CODES[Character.toLowerCase(nucl.charAt(i))] = (byte)i;
+		}
+		Arrays.fill(CIGAR_CODES, (byte)-1);
+		String ops = "MIDNSHP=X";
+		for(int i = 0; i < ops.length(); i++) CIGAR_CODES[ops.charAt(i)] = (byte)i;
+	}
+
+	private final InputStream in;
+	private final SAMFileHeader header;
+	private final BytesHashMap<Integer> referenceIndexes;
+
+	// Input buffer
+	private final byte[] buffer = new byte[1 << 16];
+	private int bufferPos = 0;
+	private int bufferEnd = 0;
+	private byte[] line = new byte[1024]; // Grows if needed
+	private int lineLength = 0; // -1 at EOF
+	private long lineNumber = 0;
+
+	// Encoded record
+	private byte[] record = new byte[1024]; // Grows if needed
+	private int recordLength = 0;
+	private int recordPos = 0;
+	private int[] cigar = new int[16];
+	private final int[] fields = new int[12]; // Start of the 11 mandatory fields, and of the tags
+
+	/**
+	 * Read the header (lines starting with '@')
+	 * @param in SAM text stream
+	 */
+	public SamTextInputStream(InputStream in) throws IOException
+	{
+		this.in = in;
+		StringBuilder text = new StringBuilder();
+		while(readLine() && lineLength > 0 && line[0] == '@') text.append(StringUtil.bytesToString(line, 0, lineLength)).append('\n');
+		this.header = new SAMTextHeaderCodec().decode(BufferedLineReader.fromString(text.toString()), null);
+		HashMap<String, Integer> indexes = new HashMap<String, Integer>();
+		for(int i = 0; i < header.getSequenceDictionary().size(); i++) indexes.put(header.getSequence(i).getSequenceName(), i);
+		this.referenceIndexes = new BytesHashMap<Integer>(indexes);
+	}
+
+	public SAMFileHeader getFileHeader()
+	{
+		return header;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		if(!ensureRecord()) return -1;
+		return record[recordPos++] & 0xff;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len) throws IOException
+	{
+		if(len == 0) return 0;
+		if(!ensureRecord()) return -1;
+		int n = Math.min(len, recordLength - recordPos);
+		System.arraycopy(record, recordPos, b, off, n);
+		recordPos += n;
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		in.close();
+	}
+
+	/**
+	 * Encode the next line, if the current record was entirely read
+	 * @return false at EOF
+	 */
+	private boolean ensureRecord() throws IOException
+	{
+		while(recordPos >= recordLength)
+		{
+			if(lineLength == -1) return false;
+			if(lineLength > 0) encode(); // Skip empty lines
+			if(!readLine()) lineLength = -1;
+		}
+		return true;
+	}
+
+	/**
+	 * Read the next line in line/lineLength (without the end of line)
+	 * @return false at EOF
+	 */
+	private boolean readLine() throws IOException
+	{
+		lineLength = 0;
+		while(true)
+		{
+			if(bufferPos == bufferEnd)
+			{
+				bufferEnd = in.read(buffer, 0, buffer.length);
+				bufferPos = 0;
+				if(bufferEnd <= 0)
+				{
+					bufferEnd = 0;
+					if(lineLength == 0) return false;
+					break;
+				}
+			}
+			int start = bufferPos;
+			while(bufferPos < bufferEnd && buffer[bufferPos] != '\n') bufferPos++;
+			int n = bufferPos - start;
+			if(lineLength + n > line.length) line = Arrays.copyOf(line, Math.max(lineLength + n, line.length * 2));
+			System.arraycopy(buffer, start, line, lineLength, n);
+			lineLength += n;
+			if(bufferPos < bufferEnd)
+			{
+				bufferPos++; // '\n'
+				break;
+			}
+		}
+		if(lineLength > 0 && line[lineLength - 1] == '\r') lineLength--;
+		lineNumber++;
+		return true;
+	}
+
+	/**
+	 * Encode the current line as a BAM record (block_size included)
+	 */
+	private void encode() throws IOException
+	{
+		// Mandatory fields
+		int nbFields = 0;
+		fields[nbFields++] = 0;
+		for(int i = 0; i < lineLength && nbFields < fields.length; i++) if(line[i] == '\t') fields[nbFields++] = i + 1;
+		for(int i = nbFields; i < fields.length; i++) fields[i] = 0; // Not found
+		if(nbFields < 11) throw error("less than 11 fields");
+		int tagsStart = (nbFields == 12)?fields[11]:lineLength + 1;
+
+		int nameLength = fieldEnd(0);
+		if(nameLength > 254) throw error("read name is too long");
+		int flag = parseInt(1);
+		int refIndex = getReferenceIndex(2, -1);
+		int pos = parseInt(3) - 1;
+		int mapq = parseInt(4);
+		int nbCigarOps = parseCigar(5);
+		int mateRefIndex = getReferenceIndex(6, refIndex);
+		int matePos = parseInt(7) - 1;
+		int tlen = parseInt(8);
+		int seqStart = fields[9];
+		int seqLength = fieldEnd(9) - seqStart;
+		if(seqLength == 1 && line[seqStart] == '*') seqLength = 0;
+		int qualStart = fields[10];
+		int qualLength = fieldEnd(10) - qualStart;
+		boolean noQual = (qualLength == 1 && line[qualStart] == '*');
+		if(!noQual && qualLength != seqLength) throw error("SEQ and QUAL have different lengths");
+
+		int refLength = 0;
+		for(int i = 0; i < nbCigarOps; i++) if(consumesReference(cigar[i] & 0xf)) refLength += cigar[i] >>> 4;
+		boolean longCigar = nbCigarOps > 65535; // Stored in the CG tag, with a placeholder kSmN CIGAR
+		int storedCigarOps = longCigar?2:nbCigarOps;
+
+		// Fixed part
+		recordLength = 4;
+		ensureCapacity(32 + nameLength + 1 + 4 * storedCigarOps + (seqLength + 1) / 2 + seqLength + (lineLength - tagsStart) * 5 + 16 + (longCigar?4 * nbCigarOps:0));
+		putInt(refIndex);
+		putInt(pos);
+		record[recordLength++] = (byte)(nameLength + 1);
+		record[recordLength++] = (byte)mapq;
+		putShort(reg2bin(pos, pos + Math.max(refLength, 1)));
+		putShort(storedCigarOps);
+		putShort(flag);
+		putInt(seqLength);
+		putInt(mateRefIndex);
+		putInt(matePos);
+		putInt(tlen);
+
+		// Variable part
+		System.arraycopy(line, 0, record, recordLength, nameLength);
+		recordLength += nameLength;
+		record[recordLength++] = 0;
+		if(longCigar)
+		{
+			putInt(seqLength << 4 | BamRecordView.CIGAR_S);
+			putInt(refLength << 4 | BamRecordView.CIGAR_N);
+		}
+		else for(int i = 0; i < nbCigarOps; i++) putInt(cigar[i]);
+		for(int i = 0; i < seqLength; i += 2)
+		{
+			int b = SEQ_CODES[line[seqStart + i] & 0xff] << 4;
+			if(i + 1 < seqLength) b |= SEQ_CODES[line[seqStart + i + 1] & 0xff];
+			record[recordLength++] = (byte)b;
+		}
+		for(int i = 0; i < seqLength; i++) record[recordLength++] = noQual?(byte)0xff:(byte)(line[qualStart + i] - 33);
+
+		// Tags
+		int start = tagsStart;
+		while(start < lineLength)
+		{
+			int end = start;
+			while(end < lineLength && line[end] != '\t') end++;
+			encodeTag(start, end);
+			start = end + 1;
+		}
+		if(longCigar)
+		{
+			record[recordLength++] = 'C';
+			record[recordLength++] = 'G';
+			record[recordLength++] = 'B';
+			record[recordLength++] = 'I';
+			putInt(nbCigarOps);
+			for(int i = 0; i < nbCigarOps; i++) putInt(cigar[i]);
+		}
+
+		setInt(0, recordLength - 4); // block_size
+		recordPos = 0;
+	}
+
+	/**
+	 * Encode a TAG:TYPE:VALUE field
+	 */
+	private void encodeTag(int start, int end) throws IOException
+	{
+		if(end - start < 5 || line[start + 2] != ':' || line[start + 4] != ':') throw error("invalid tag");
+		byte type = line[start + 3];
+		int value = start + 5;
+		record[recordLength++] = line[start];
+		record[recordLength++] = line[start + 1];
+		switch(type)
+		{
+			case 'A':
+				record[recordLength++] = 'A';
+				record[recordLength++] = line[value];
+				break;
+			case 'i':
+				long v = parseLong(value, end);
+				if(v > Integer.MAX_VALUE)
+				{
+					record[recordLength++] = 'I';
+					putInt((int)v);
+				}
+				else
+				{
+					record[recordLength++] = 'i';
+					putInt((int)v);
+				}
+				break;
+			case 'f':
+				record[recordLength++] = 'f';
+				putInt(Float.floatToIntBits(Float.parseFloat(StringUtil.bytesToString(line, value, end - value))));
+				break;
+			case 'Z':
+			case 'H':
+				record[recordLength++] = type;
+				System.arraycopy(line, value, record, recordLength, end - value);
+				recordLength += end - value;
+				record[recordLength++] = 0;
+				break;
+			case 'B':
+				byte subtype = line[value];
+				int count = 0;
+				for(int i = value + 1; i < end; i++) if(line[i] == ',') count++;
+				ensureCapacity(6 + 4 * count);
+				record[recordLength++] = 'B';
+				record[recordLength++] = subtype;
+				putInt(count);
+				int s = value + 2;
+				for(int n = 0; n < count; n++)
+				{
+					int e = s;
+					while(e < end && line[e] != ',') e++;
+					switch(subtype)
+					{
+						case 'c': case 'C': record[recordLength++] = (byte)parseLong(s, e); break;
+						case 's': case 'S': putShort((int)parseLong(s, e)); break;
+						case 'i': case 'I': putInt((int)parseLong(s, e)); break;
+						case 'f': putInt(Float.floatToIntBits(Float.parseFloat(StringUtil.bytesToString(line, s, e - s)))); break;
+						default: throw error("invalid array tag type");
+					}
+					s = e + 1;
+				}
+				break;
+			default:
+				throw error("invalid tag type");
+		}
+	}
+
+	/**
+	 * Parse the CIGAR field in cigar
+	 * @return number of CIGAR operations
+	 */
+	private int parseCigar(int field) throws IOException
+	{
+		int start = fields[field];
+		int end = fieldEnd(field);
+		if(end - start == 1 && line[start] == '*') return 0;
+		int n = 0;
+		int length = 0;
+		for(int i = start; i < end; i++)
+		{
+			byte c = line[i];
+			if(c >= '0' && c <= '9') length = length * 10 + (c - '0');
+			else
+			{
+				if(CIGAR_CODES[c & 0xff] == -1) throw error("invalid CIGAR");
+				if(n == cigar.length) cigar = Arrays.copyOf(cigar, n * 2);
+				cigar[n++] = length << 4 | CIGAR_CODES[c & 0xff];
+				length = 0;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * @param same index to use for '='
+	 * @return index of the reference sequence of this field, -1 if '*'
+	 */
+	private int getReferenceIndex(int field, int same) throws IOException
+	{
+		int start = fields[field];
+		int length = fieldEnd(field) - start;
+		if(length == 1 && line[start] == '*') return -1;
+		if(length == 1 && line[start] == '=') return same;
+		Integer index = referenceIndexes.get(line, start, length);
+		if(index == null) throw error("reference " + StringUtil.bytesToString(line, start, length) + " is not in the header");
+		return index;
+	}
+
+	private static boolean consumesReference(int op)
+	{
+		return op == BamRecordView.CIGAR_M || op == BamRecordView.CIGAR_D || op == BamRecordView.CIGAR_N || op == BamRecordView.CIGAR_EQ || op == BamRecordView.CIGAR_X;
+	}
+
+	/**
+	 * @return BAI bin of the 0-based region [beg, end) (see SAM specification)
+	 */
+	private static int reg2bin(int beg, int end)
+	{
+		end--;
+		if(beg >> 14 == end >> 14) return ((1 << 15) - 1) / 7 + (beg >> 14);
+		if(beg >> 17 == end >> 17) return ((1 << 12) - 1) / 7 + (beg >> 17);
+		if(beg >> 20 == end >> 20) return ((1 << 9) - 1) / 7 + (beg >> 20);
+		if(beg >> 23 == end >> 23) return ((1 << 6) - 1) / 7 + (beg >> 23);
+		if(beg >> 26 == end >> 26) return ((1 << 3) - 1) / 7 + (beg >> 26);
+		return 0;
+	}
+
+	private int fieldEnd(int field)
+	{
+		return (field + 1 < fields.length && fields[field + 1] != 0)?fields[field + 1] - 1:lineLength;
+	}
+
+	private int parseInt(int field) throws IOException
+	{
+		return (int)parseLong(fields[field], fieldEnd(field));
+	}
+
+	private long parseLong(int start, int end) throws IOException
+	{
+		boolean negative = (start < end && line[start] == '-');
+		if(negative || (start < end && line[start] == '+')) start++;
+		if(start == end) throw error("invalid number");
+		long v = 0;
+		for(int i = start; i < end; i++)
+		{
+			int d = line[i] - '0';
+			if(d < 0 || d > 9) throw error("invalid number");
+			v = v * 10 + d;
+		}
+		return negative?-v:v;
+	}
+
+	private void ensureCapacity(int n)
+	{
+		if(recordLength + n > record.length) record = Arrays.copyOf(record, Math.max(recordLength + n, record.length * 2));
+	}
+
+	private void putShort(int v)
+	{
+		record[recordLength++] = (byte)v;
+		record[recordLength++] = (byte)(v >> 8);
+	}
+
+	private void putInt(int v)
+	{
+		setInt(recordLength, v);
+		recordLength += 4;
+	}
+
+	private void setInt(int off, int v)
+	{
+		record[off] = (byte)v;
+		record[off + 1] = (byte)(v >> 8);
+		record[off + 2] = (byte)(v >> 16);
+		record[off + 3] = (byte)(v >> 24);
+	}
+
+	private IOException error(String message)
+	{
+		return new IOException("Invalid SAM line " + lineNumber + ": " + message);
+	}
+}
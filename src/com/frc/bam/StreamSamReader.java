@@ -0,0 +1,180 @@
+package com.frc.bam;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+
+import com.frc.parallel.PipelinedBgzfInputStream;
+import com.tools.Utils;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.cram.build.CramIO;
+import htsjdk.samtools.cram.common.CRAMVersion;
+import htsjdk.samtools.cram.io.CountingInputStream;
+import htsjdk.samtools.cram.structure.Container;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BufferedLineReader;
+import htsjdk.samtools.util.StringUtil;
+
+/**
+ * Reads an alignment file from its beginning to its end, without seeking: stdin ("-"), a FIFO (e.g. the output of the aligner), or a file that is not a BGZF compressed BAM
+ * The format is detected from the first bytes:
+ * - BGZF compressed BAM (or SAM)
+ * - uncompressed BAM (samtools view -u)
+ * - CRAM, whose records are decoded and encoded to BAM on the fly (see CramRecordInputStream)
+ * - SAM text, whose records are encoded to BAM on the fly (see SamTextInputStream)
+ * In all cases, the stream of records is read by the same code as BAM files (see BamRecordView)
+ */
+public class StreamSamReader implements Closeable
+{
+	public static final String STDIN = "-";
+
+	private final SAMFileHeader samFileHeader;
+	private final InputStream records;
+	private PipelinedBgzfInputStream pipelinedStream = null;
+	public final String format;
+
+	/**
+	 * @param inflaterPool if not null, BGZF blocks are read in a pipeline and inflated by this pool of threads
+	 */
+	public StreamSamReader(final File file, final ExecutorService inflaterPool) throws IOException
+	{
+		InputStream in = new BufferedInputStream(isStdin(file)?System.in:new FileInputStream(file), 1 << 16);
+		String compression = "";
+		if(startsWith(in, (byte)0x1f, (byte)0x8b))
+		{
+			compression = "BGZF compressed ";
+			if(inflaterPool != null) in = this.pipelinedStream = new PipelinedBgzfInputStream(in, 0, inflaterPool);
+			else in = new BlockCompressedInputStream(in);
+			in = new BufferedInputStream(in, 1 << 16); // For detecting the format
+		}
+		if(startsWith(in, (byte)'B', (byte)'A', (byte)'M', (byte)1))
+		{
+			this.format = compression + "BAM";
+			this.samFileHeader = readBAMHeader(in, file.getPath());
+			this.records = in;
+		}
+		else if(startsWith(in, (byte)'C', (byte)'R', (byte)'A', (byte)'M'))
+		{
+			this.format = "CRAM";
+			CountingInputStream counter = new CountingInputStream(in);
+			CRAMVersion version = CramIO.readCramHeader(counter).getCRAMVersion();
+			this.samFileHeader = Container.readSAMFileHeaderContainer(version, counter, file.getPath());
+			this.records = new CramRecordInputStream(in, counter.getCount(), 0, version, this.samFileHeader);
+		}
+		else
+		{
+			this.format = compression + "SAM";
+			SamTextInputStream sam = new SamTextInputStream(in);
+			this.samFileHeader = sam.getFileHeader();
+			this.records = sam;
+		}
+	}
+
+	/**
+	 * @return true if this input has to be read by a StreamSamReader: stdin, FIFO, or a file that is not a BGZF compressed BAM nor a CRAM (that CustomSamReader/CustomCramReader can seek in)
+	 */
+	public static boolean isStream(final File file) throws IOException
+	{
+		if(isStdin(file) || !file.isFile()) return true;
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try
+		{
+			if(startsWith(in, (byte)'C', (byte)'R', (byte)'A', (byte)'M')) return false;
+			if(!startsWith(in, (byte)0x1f, (byte)0x8b)) return true;
+			return !startsWith(new BufferedInputStream(new BlockCompressedInputStream(in)), (byte)'B', (byte)'A', (byte)'M', (byte)1);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	public static boolean isStdin(final File file)
+	{
+		return file.getPath().equals(STDIN);
+	}
+
+	public SAMFileHeader getFileHeader()
+	{
+		return samFileHeader;
+	}
+
+	/**
+	 * @return the stream of the (inflated) BAM records, just after the header
+	 */
+	public InputStream open()
+	{
+		return records;
+	}
+
+	@Override
+	public void close()
+	{
+		if(this.pipelinedStream != null) this.pipelinedStream.close(); // Stops the reader thread
+		try
+		{
+			records.close();
+		}
+		catch(IOException ioe)
+		{
+			// Nothing to do, everything was read
+		}
+	}
+
+	/**
+	 * @return true if the stream starts with these bytes (they are not consumed)
+	 */
+	private static boolean startsWith(final InputStream in, final byte... magic) throws IOException
+	{
+		in.mark(magic.length);
+		byte[] b = new byte[magic.length];
+		int n = 0;
+		while(n < b.length)
+		{
+			int r = in.read(b, n, b.length - n);
+			if(r <= 0) break;
+			n += r;
+		}
+		in.reset();
+		if(n < magic.length) return false;
+		for(int i = 0; i < magic.length; i++) if(b[i] != magic[i]) return false;
+		return true;
+	}
+
+	/**
+	 * Read the header of a BAM stream (text header and binary list of the reference sequences)
+	 */
+	private static SAMFileHeader readBAMHeader(final InputStream in, final String source) throws IOException
+	{
+		byte[] b = new byte[4];
+		Utils.readFully(in, b); // Magic
+		byte[] text = new byte[readInt(in, b)];
+		Utils.readFully(in, text);
+		SAMFileHeader header = new SAMTextHeaderCodec().decode(BufferedLineReader.fromString(StringUtil.bytesToString(text)), source);
+		int nbRefs = readInt(in, b);
+		ArrayList<SAMSequenceRecord> refs = new ArrayList<SAMSequenceRecord>(nbRefs);
+		for(int i = 0; i < nbRefs; i++)
+		{
+			byte[] name = new byte[readInt(in, b)];
+			Utils.readFully(in, name);
+			refs.add(new SAMSequenceRecord(StringUtil.bytesToString(name, 0, name.length - 1), readInt(in, b))); // Without trailing NUL
+		}
+		if(header.getSequenceDictionary().size() != nbRefs) header.setSequenceDictionary(new SAMSequenceDictionary(refs)); // The binary list is the reference
+		return header;
+	}
+
+	private static int readInt(final InputStream in, final byte[] b) throws IOException
+	{
+		Utils.readFully(in, b, 0, 4);
+		return (b[0] & 0xff) | ((b[1] & 0xff) << 8) | ((b[2] & 0xff) << 16) | ((b[3] & 0xff) << 24);
+	}
+}
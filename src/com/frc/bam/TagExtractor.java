@@ -0,0 +1,110 @@
+package com.frc.bam;
+
+import java.util.HashMap;
+
+import com.frc.parameters.Global;
+import com.frc.parameters.Parameters;
+import com.tools.BytesHashMap;
+import com.tools.DNAHashing;
+
+import htsjdk.samtools.util.StringUtil;
+
+/**
+ * Extracts the barcode (CB), gene (GX) and UMI (UB/UR) tags of a BamRecordView in one pass over its tags
+ * Barcodes and genes are resolved directly from the bytes of the record (no String is created), UMIs are packed on 2 bits per nucleotide
+ */
+public class TagExtractor
+{
+	// Indexes of the tags in the scanned list
+	private static final int BARCODE = 0;
+	private static final int GENE = 1;
+	private static final int UMI = 2;
+	private static final int UMI_RAW = 3; // Non corrected
+
+	private static short[] tags = null;
+	private static BytesHashMap<Integer> genes = null; // GX => index in Global.geneIndex
+	private static BytesHashMap<String> barcodes = null; // CB => barcode (same String as in the results)
+
+	/**
+	 * Build the lookup tables, once the GTF and the barcodes are loaded (and before the BAM is read)
+	 */
+	public static void init()
+	{
+		tags = new short[] { BamRecordView.encodeTag(Parameters.barcodeTag), BamRecordView.encodeTag("GX"), BamRecordView.encodeTag("UB"), BamRecordView.encodeTag("UR") };
+		genes = new BytesHashMap<Integer>(Global.geneIndex);
+		HashMap<String, String> b = new HashMap<String, String>();
+		for(String barcode:Parameters.barcodes) b.put(barcode, barcode);
+		barcodes = new BytesHashMap<String>(b);
+	}
+
+	/**
+	 * @return barcode of the read, "Unknown" if it has none
+	 */
+	public static String getBarcode(BamRecordView samRecord) throws InvalidRecordException
+	{
+		samRecord.scanTags(tags);
+		int off = samRecord.getScannedTagOffset(BARCODE);
+		if(off == -1 || isDash(samRecord, BARCODE)) return "Unknown"; // New in STAR, now unknown barcodes are labelled '-' instead of the CB tag being nonexistent.
+		String barcode = barcodes.get(samRecord.getData(), off, samRecord.getScannedTagLength(BARCODE));
+		if(barcode == null) throw new InvalidRecordException("Barcode " + tagToString(samRecord, BARCODE) + " is found in the BAM file, but is not in your list of barcodes");
+		return barcode;
+	}
+
+	/**
+	 * @return index of the gene of the read (GX tag), or -1 if it has none
+	 */
+	public static int getGeneIndex(BamRecordView samRecord) throws InvalidRecordException
+	{
+		samRecord.scanTags(tags);
+		int off = samRecord.getScannedTagOffset(GENE);
+		if(off == -1 || isDash(samRecord, GENE)) return -1;
+		Integer indexGene = genes.get(samRecord.getData(), off, samRecord.getScannedTagLength(GENE)); // From GTF
+		if(indexGene == null) throw new InvalidRecordException("ERROR: This gene " + tagToString(samRecord, GENE) + " is not in your GTF file. Please check again.");
+		return indexGene;
+	}
+
+	/**
+	 * @return index of the UMI tag of the read (UB, or UR if not corrected), or -1 if it has none
+	 */
+	private static int getUMITag(BamRecordView samRecord)
+	{
+		samRecord.scanTags(tags);
+		if(samRecord.getScannedTagOffset(UMI) != -1) return UMI;
+		if(samRecord.getScannedTagOffset(UMI_RAW) != -1) return UMI_RAW;
+		return -1;
+	}
+
+	public static boolean hasUMI(BamRecordView samRecord)
+	{
+		return getUMITag(samRecord) != -1;
+	}
+
+	/**
+	 * @return UMI of the read packed on 2 bits per nucleotide (call hasUMI() first)
+	 */
+	public static long getUMI(BamRecordView samRecord)
+	{
+		int tag = getUMITag(samRecord);
+		return DNAHashing.convertNuclBytesToInt64(samRecord.getData(), samRecord.getScannedTagOffset(tag), samRecord.getScannedTagLength(tag));
+	}
+
+	/**
+	 * @return length of the UMI of the read (call hasUMI() first)
+	 */
+	public static int getUMILength(BamRecordView samRecord) throws InvalidRecordException
+	{
+		int length = samRecord.getScannedTagLength(getUMITag(samRecord));
+		if(length > 32) throw new InvalidRecordException("Cannot procede UMIs greater than 32nt"); // See ResultStruct.addUMI()
+		return length;
+	}
+
+	private static boolean isDash(BamRecordView samRecord, int tag)
+	{
+		return samRecord.getScannedTagLength(tag) == 1 && samRecord.getData()[samRecord.getScannedTagOffset(tag)] == '-';
+	}
+
+	private static String tagToString(BamRecordView samRecord, int tag)
+	{
+		return StringUtil.bytesToString(samRecord.getData(), samRecord.getScannedTagOffset(tag), samRecord.getScannedTagLength(tag));
+	}
+}
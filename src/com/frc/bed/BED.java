@@ -1,81 +1,155 @@
 package com.frc.bed;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileReader;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.zip.GZIPInputStream;
 
 import com.errors.ErrorMessage;
+import com.frc.parallel.LineChunkReader;
 import com.frc.parameters.Global;
 import com.frc.parameters.Parameters;
 import com.intervals.Forest;
-import com.intervals.IntervalLabelled;
 
 public class BED 
 {
+	private static int nbFeatures = 0;
+	private static int nbLines = 0; // Lines of the chunks already added
+	private static boolean header = true; // Still in the first lines (browser/track lines are skipped)
+
 	public static void readBED() throws Exception
 	{
 		System.out.println("\nReading BED file provided: " + Parameters.inputBEDFile.getAbsolutePath());
+		checkExtension(Parameters.inputBEDFile);
 		Global.geneIndex = new HashMap<String, Integer>(); // Fill this as we go
 		Global.mappingGeneIdGeneName = new HashMap<String, String>(); // For filling final matrices
-		BufferedReader br = openBED(Parameters.inputBEDFile);
-		String line = br.readLine();
-		int l = 1;
-		while(line.startsWith("browser") || line.startsWith("track")) { line = br.readLine(); l++;} // Skip these
 		if(!Parameters.use_bam_tags) Forest.init();
-		int nbFeatures = 0;
-		while(line != null)
+		nbFeatures = 0;
+		nbLines = 0;
+		header = true;
+		LineChunkReader.read(Parameters.inputBEDFile, Parameters.nbThreads, BED::parseChunk, BED::addLines); // Chunks are parsed in parallel, and added in order
+		
+		System.out.println("In total " + nbFeatures + " annotations/features are found in the BED file.");
+		
+		if(nbFeatures == 0) new ErrorMessage("We couldn't parse the BED file. Please report this problem if the BED is in standard format.");
+		if(!Parameters.use_bam_tags) Forest.build();
+	}
+	
+	/**
+	 * Add the features of a parsed chunk, in the order of the BED file
+	 */
+	private static void addLines(BEDChunk chunk)
+	{
+		for(BEDLine line:chunk.lines)
 		{
-			String[] tokens = line.split("\t");
-			if(tokens.length < 3) new ErrorMessage("BED entry should contain at least 3 values at l." + l);
-
-			// Parse Line
-			String chr = tokens[0];
-			long start = Long.parseLong(tokens[1]);
-			long end = Long.parseLong(tokens[2]);
-			String feature_id = chr + ":" + start + ":" + end;
-			String feature_name = (tokens.length >= 4)?tokens[3]:"";
-			boolean strand = (tokens.length >= 6)?tokens[5].equals("+"):true;
+			int l = nbLines + line.line + 1;
+			if(header && line.header) continue; // Skip these
+			header = false;
+			if(line.error != null) throw line.error;
+			if(line.nbTokens < 3) new ErrorMessage("BED entry should contain at least 3 values at l." + l);
 			
-			Integer index = Global.geneIndex.get(feature_id);
+			Integer index = Global.geneIndex.get(line.feature_id);
 			if(index == null)
 			{
 				// Here we use start+1 because BED files are 0-indexed
-				if(!Parameters.use_bam_tags) Forest.addToTree(chr, new IntervalLabelled((int)(start + 1), (int)end, feature_id, strand));
-				Global.geneIndex.put(feature_id, nbFeatures);
-				Global.mappingGeneIdGeneName.put(feature_id, feature_name);
+				if(!Parameters.use_bam_tags) Forest.addToTree(line.chr, (int)(line.start + 1), (int)line.end, line.feature_id, line.strand);
+				Global.geneIndex.put(line.feature_id, nbFeatures);
+				Global.mappingGeneIdGeneName.put(line.feature_id, line.feature_name);
 				nbFeatures++;
 			}
-			else System.err.println("l. " + l + ": " + feature_id + " already appeared in your BED file. All extra occurrences are ignored.");
-			
-			line = br.readLine(); l++;
+			else System.err.println("l. " + l + ": " + line.feature_id + " already appeared in your BED file. All extra occurrences are ignored.");
 		}
-		br.close();
-		
-		System.out.println("In total " + nbFeatures + " annotations/features are found in the BED file.");
-		
-		if(nbFeatures == 0) new ErrorMessage("We couldn't parse the BED file. Please report this problem if the BED is in standard format.");
+		nbLines += chunk.nbLines;
 	}
 	
-	private static BufferedReader openBED(File bed) throws Exception
+	/**
+	 * Parse the lines of a chunk of the BED file (any thread)
+	 */
+	private static BEDChunk parseChunk(ByteBuffer b)
 	{
-		if(bed.getAbsolutePath().endsWith(".bed"))
-		{
-			return new BufferedReader(new FileReader(bed));
-		}
-		else if(bed.getAbsolutePath().endsWith(".bed.gz"))
+		BEDChunk chunk = new BEDChunk();
+		StringBuilder id = new StringBuilder();
+		int[] starts = new int[6], ends = new int[6]; // First 6 tokens of the line
+		String chr = null;
+		int limit = b.limit();
+		for(int pos = b.position(); pos < limit; chunk.nbLines++)
 		{
-			return new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(bed))));
+			int next = LineChunkReader.lineEnd(b, pos, limit);
+			int end = LineChunkReader.trimCR(b, pos, next);
+			BEDLine line = new BEDLine();
+			line.line = chunk.nbLines;
+			line.header = startsWith(b, pos, end, "browser") || startsWith(b, pos, end, "track");
+			
+			// Same number of tokens as String.split("\t"), i.e. without the trailing empty ones
+			line.nbTokens = 0;
+			for(int t = pos, n = 0;; n++)
+			{
+				int e = LineChunkReader.nextTab(b, t, end);
+				if(n < 6) { starts[n] = t; ends[n] = e; }
+				if(e > t) line.nbTokens = n + 1;
+				if(e == end) break;
+				t = e + 1;
+			}
+			
+			if(line.nbTokens >= 3)
+			{
+				try
+				{
+					chr = LineChunkReader.toString(b, starts[0], ends[0], chr);
+					line.chr = chr;
+					line.start = LineChunkReader.parseLong(b, starts[1], ends[1]);
+					line.end = LineChunkReader.parseLong(b, starts[2], ends[2]);
+					id.setLength(0);
+					line.feature_id = id.append(chr).append(':').append(line.start).append(':').append(line.end).toString();
+					line.feature_name = (line.nbTokens >= 4)?LineChunkReader.toString(b, starts[3], ends[3], null):"";
+					line.strand = (line.nbTokens >= 6)?LineChunkReader.equals(b, starts[5], ends[5], "+"):true;
+				}
+				catch(NumberFormatException e)
+				{
+					line.error = e; // Thrown when the line is added, unless it is a skipped header line
+				}
+			}
+			chunk.lines.add(line);
+			pos = next + 1;
 		}
-		else
+		return chunk;
+	}
+	
+	private static boolean startsWith(ByteBuffer b, int from, int to, String s)
+	{
+		return to - from >= s.length() && LineChunkReader.equals(b, from, from + s.length(), s);
+	}
+	
+	private static void checkExtension(File bed)
+	{
+		if(!bed.getAbsolutePath().endsWith(".bed") && !bed.getAbsolutePath().endsWith(".bed.gz"))
 		{
 			System.err.println("The extension of the BED file is not recognized : " + bed.getAbsolutePath());
 			System.err.println("It should be '.bed', or '.bed.gz'");
 			System.exit(-1);
 		}
-		return null;
 	}
 }
+
+/**
+ * Parsed lines of a chunk of the BED file
+ */
+class BEDChunk
+{
+	ArrayList<BEDLine> lines = new ArrayList<>();
+	int nbLines = 0;
+}
+
+class BEDLine
+{
+	int line; // In its chunk, from 0
+	boolean header; // browser/track line
+	int nbTokens;
+	RuntimeException error = null;
+	String chr;
+	long start;
+	long end;
+	boolean strand;
+	String feature_id;
+	String feature_name;
+}
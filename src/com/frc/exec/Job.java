@@ -1,70 +1,202 @@
 package com.frc.exec;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 import com.frc.bam.BAM;
+import com.frc.bam.BamRecordView;
+import com.frc.bam.MateBuffer;
 import com.frc.bam.Read;
+import com.frc.parallel.CustomCramReader;
 import com.frc.parallel.CustomSamReader;
+import com.frc.parallel.SplitIndex;
 import com.frc.parameters.ResultStruct;
+import com.intervals.Forest;
+import com.intervals.ReferenceFeatures;
 
-import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.util.CloseableIterator;
+import gnu.trove.list.array.TLongArrayList;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileHeader.SortOrder;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.LocationAware;
 
-public class Job extends Thread
+/**
+ * Processes all records with virtual offset in [startVirtualOffset, endVirtualOffset)
+ * This is the decoding/counting stage of the pipeline, blocks are read and inflated by other threads (see PipelinedBgzfInputStream)
+ * For CRAM files, the job decodes the slices of its range itself (see CramRecordInputStream)
+ * Jobs are small units of work, run by the scheduler of JobDispatcher. Errors are reported to the scheduler
+ * In paired mode, records of the range can be read again afterwards, by their number in the range (see readRecords)
+ */
+public class Job implements Callable<Job>
 {
-	private CloseableIterator<SAMRecord> it;
-	private CustomSamReader samReader;
-	private SAMRecord lastSAMRecord;
+	private String filePath;
+	private boolean cram;
 	private HashMap<String, ResultStruct> results;
-	private HashMap<String, Read> pairedBuffer;
-	
-	public long nbReads = 0;
-	
-	public Job(CloseableIterator<SAMRecord> it, CustomSamReader samReader, SAMRecord lastSAMRecord, HashMap<String, ResultStruct> results, HashMap<String, Read> pairedBuffer)
+	private MateBuffer pairedBuffer; // Mates of this partition (null if single-end)
+	private ExecutorService inflaterPool;
+	private Closeable samReader = null; // CustomSamReader or CustomCramReader, opened only when the job runs
+	private SAMFileHeader header = null;
+	private TLongArrayList anchorOffsets = null; // Virtual offset of the first record of each block (or CRAM slice) of the range (paired mode)
+	private TLongArrayList anchorRecords = null; // Number of this record in the range
+
+	public final long startVirtualOffset;
+	public final long endVirtualOffset;
+	public long stopVirtualOffset = -1; // Where the job actually stopped, should be the start of the next job
+	public volatile long nbReads = 0; // Read by the scheduler, for reporting progress
+	public Throwable error = null; // Why the job failed (e.g. it started on a misdetected boundary), null if it succeeded
+	public SplitIndex.Recorder splitOffsets = null; // Virtual offsets of the records, for writing the split index (null if it is not needed)
+
+	public Job(String filePath, boolean cram, long startVirtualOffset, long endVirtualOffset, HashMap<String, ResultStruct> results, MateBuffer pairedBuffer, ExecutorService inflaterPool)
 	{
-		this.it = it;
-		this.samReader = samReader;
-		this.lastSAMRecord = lastSAMRecord;
+		this.filePath = filePath;
+		this.cram = cram;
+		this.startVirtualOffset = startVirtualOffset;
+		this.endVirtualOffset = endVirtualOffset;
 		this.results = results;
 		this.pairedBuffer = pairedBuffer;
+		this.inflaterPool = inflaterPool;
 	}
-	
-	public boolean reachedSameRead(SAMRecord samRecord, SAMRecord samRecord2) 
+
+	@Override
+	public Job call()
 	{
-		// Note, I could add this in the equals() inherited function of SAMRecord
-		if(samRecord == null) return false;
-		if(samRecord2 == null) return false;
-		if(!samRecord.getReadName().equals(samRecord2.getReadName())) return false;
-		// If I stop here, it can fail in case of:
-		// - Bad BAM files containing duplicated reads all over the place
-		// - Ok BAM files with simply duplicated reads?
-		if(samRecord.getAlignmentEnd() != samRecord2.getAlignmentEnd()) return false;
-		if(samRecord.getAlignmentStart() != samRecord2.getAlignmentStart()) return false;
-		// How could I know otherwise if it's exactly the same read? Should take the offset loci maybe?
-		return true;
+		ReferenceFeatures previousFile = null;
+		try
+		{
+			InputStream in = open(startVirtualOffset, inflaterPool);
+			LocationAware location = (LocationAware)in;
+			BamRecordView samRecord = new BamRecordView(header); // Reused for all records
+			previousFile = Forest.setFile(header, header.getSortOrder() == SortOrder.coordinate);
+			if(pairedBuffer != null)
+			{
+				anchorOffsets = new TLongArrayList();
+				anchorRecords = new TLongArrayList();
+			}
+
+			// Start reading the BAM file
+			long vo;
+			while((vo = location.getPosition()) < endVirtualOffset)
+			{
+				if(pairedBuffer != null)
+				{
+					if(anchorOffsets.isEmpty() || block(vo) != block(anchorOffsets.get(anchorOffsets.size() - 1)))
+					{
+						anchorOffsets.add(vo);
+						anchorRecords.add(nbReads);
+					}
+					pairedBuffer.setRecordNumber(nbReads);
+				}
+				if(!BAM.readRecord(samRecord, in, this.results, this.pairedBuffer)) break;
+				nbReads++;
+				if(splitOffsets != null) splitOffsets.add(vo);
+			}
+			stopVirtualOffset = location.getPosition();
+		}
+		catch(Exception | OutOfMemoryError e) // Records read from a wrong offset can be anything, e.g. a huge block_size
+		{
+			error = e; // The scheduler decides if this is fatal (nothing in the counting path exits the JVM, see InvalidRecordException)
+		}
+		finally
+		{
+			Forest.restoreFile(previousFile); // The thread may run jobs of another file
+			CloserUtil.close(samReader);
+			samReader = null;
+		}
+		return this;
 	}
-		
-	@Override
-	public void run() 
+
+	/**
+	 * Read again some records of the range, once the job ran (e.g. for pairing them again, see MateBuffer.undoPairs). Only the blocks (or slices) of these records are read
+	 * @param numbers numbers of the records in the range (see MateBuffer.setRecordNumber)
+	 * @return the reads of these records, with their names, and their numbers as order
+	 */
+	public Read[] readRecords(long[] numbers) throws IOException
 	{
-		// Start reading the BAM file
-		while(it.hasNext())
+		Integer[] sorted = new Integer[numbers.length];
+		for(int i = 0; i < sorted.length; i++) sorted[i] = i;
+		Arrays.sort(sorted, (i1, i2) -> Long.compare(numbers[i1], numbers[i2]));
+		Read[] reads = new Read[numbers.length];
+		try
+		{
+			InputStream in = null;
+			BamRecordView samRecord = null;
+			long next = 0; // Number of the next record of in
+			for(int i:sorted)
+			{
+				int anchor = anchorRecords.binarySearch(numbers[i]);
+				if(anchor < 0) anchor = -anchor - 2; // Last anchor before the record
+				if(in == null || next > numbers[i] || anchorRecords.get(anchor) > next) // Rather than skipping the records of the blocks in between
+				{
+					in = open(anchorOffsets.get(anchor), null);
+					if(samRecord == null) samRecord = new BamRecordView(header);
+					next = anchorRecords.get(anchor);
+				}
+				for(; next < numbers[i]; next++)
+				{
+					samRecord.readHeader(in);
+					samRecord.skipBody(in);
+				}
+				if(!samRecord.read(in)) throw new IOException("Record " + numbers[i] + " of the range starting at " + startVirtualOffset + " is missing");
+				next++;
+				reads[i] = BAM.toNamedRead(samRecord);
+				reads[i].order = numbers[i];
+			}
+		}
+		finally
 		{
-			SAMRecord samRecord = it.next();
-			
-			nbReads++;
+			CloserUtil.close(samReader);
+			samReader = null;
+		}
+		return reads;
+	}
 
-			BAM.processRecord(samRecord, this.results, this.pairedBuffer);
-			
-			// TODO: OMG we should be careful with paired-end seq. Multiple mapped reads?
-			if(reachedSameRead(samRecord, lastSAMRecord)) break; // I need to process it, so I break at the end
+	/**
+	 * Open the file if needed, and a stream of its records at this virtual offset
+	 * @param inflaterPool if not null, blocks are read in a pipeline and inflated by this pool of threads (BAM)
+	 */
+	private InputStream open(long virtualOffset, ExecutorService inflaterPool) throws IOException
+	{
+		if(cram)
+		{
+			CustomCramReader reader = (CustomCramReader)samReader;
+			if(reader == null)
+			{
+				reader = new CustomCramReader(filePath);
+				samReader = reader;
+				header = reader.getFileHeader();
+			}
+			return reader.openVirtualRange(virtualOffset);
+		}
+		CustomSamReader reader = (CustomSamReader)samReader;
+		if(reader == null)
+		{
+			reader = new CustomSamReader(filePath);
+			samReader = reader;
+			header = reader.getFileHeader();
 		}
-		
-		samReader.close();
+		return reader.openVirtualRange(virtualOffset, endVirtualOffset, inflaterPool);
 	}
-	
+
+	/**
+	 * @return the block of this virtual offset (CRAM: its slice)
+	 */
+	private long block(long virtualOffset)
+	{
+		return cram?virtualOffset:(virtualOffset >>> 16);
+	}
+
 	public HashMap<String, ResultStruct> getResults()
 	{
 		return results;
 	}
+
+	public MateBuffer getPairedBuffer()
+	{
+		return pairedBuffer;
+	}
 }
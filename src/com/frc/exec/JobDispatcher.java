@@ -1,62 +1,290 @@
 package com.frc.exec;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
-import java.lang.Thread.State;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import com.errors.ErrorMessage;
+import com.errors.WarningMessage;
 import com.frc.bam.BAM;
+import com.frc.bam.BamRecordView;
+import com.frc.bam.InvalidRecordException;
+import com.frc.bam.MateBuffer;
 import com.frc.bam.Read;
+import com.frc.bam.StreamSamReader;
+import com.frc.bam.TagExtractor;
+import com.frc.parallel.BamIndexReader;
+import com.frc.parallel.CustomCramReader;
 import com.frc.parallel.CustomSamReader;
+import com.frc.parallel.PipelinedBgzfInputStream;
+import com.frc.parallel.SplitIndex;
 import com.frc.parameters.Global;
 import com.frc.parameters.Parameters;
 import com.frc.parameters.ResultStruct;
+import com.intervals.Forest;
+import com.intervals.ReferenceFeatures;
 import com.tools.MemoryHandler;
 import com.tools.Utils;
 
-import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.SAMRecordIterator;
-import htsjdk.samtools.SamReader;
-import htsjdk.samtools.SamReaderFactory;
-import htsjdk.samtools.ValidationStringency;
-import htsjdk.samtools.util.CloseableIterator;
+import gnu.trove.list.array.TIntArrayList;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileHeader.SortOrder;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.LocationAware;
+
 
 public class JobDispatcher
 {
+	private static final long UNIT_SIZE = 64 * 1024 * 1024; // Size of the units of work in parallel mode (compressed bytes)
 	private static boolean heapMsg = false;
-	private static HashMap<String, ResultStruct> results = null;
-	private static HashMap<String, Read> pairedBuffer = null;
 	
-	private static void init()
+	/**
+	 * @return a new result struct per barcode
+	 */
+	private static HashMap<String, ResultStruct> initResults()
 	{
-		// Init Main result struct
-		results = new HashMap<String, ResultStruct>();
-		for(String barcode:Parameters.barcodes) results.put(barcode, new ResultStruct(Global.geneIndex.size(), barcode));
-
-		// Init temporary paired read buffer
-		if(Parameters.is_paired) pairedBuffer = new HashMap<String, Read>();
+		HashMap<String, ResultStruct> results = new HashMap<String, ResultStruct>();
+		for(String barcode:Parameters.barcodes) results.put(barcode, new ResultStruct(Global.getNbFeatures(), barcode));
+		return results;
+	}
+	
+	/**
+	 * Read all the BAM files of --bam
+	 * In batch mode (several BAM files), the annotation is shared by all files, and the results of the files of a same sample are summed in one column (one per sample and barcode). Global.mappingBarcodeName then maps these columns to their names
+	 * Files are read concurrently (one thread each) if there are at least as many files as threads, otherwise one after the other (each with all threads)
+	 * @return results by column
+	 */
+	public static HashMap<String, ResultStruct> readBAMs()
+	{
+		// Init barcode/gene lookups from the BAM tags
+		if(Parameters.doDemultiplexing || Parameters.use_bam_tags) TagExtractor.init();
+		
+		if(Parameters.inputBAMFiles.size() == 1)
+		{
+			if(Parameters.nbThreads == 1) return readBAM(Parameters.inputBAMFile, null, Parameters.maxBufferedMates);
+			return readBAMParallel(Parameters.inputBAMFile);
+		}
+		
+		// Columns of the batch
+		HashMap<String, ResultStruct> samples = new HashMap<String, ResultStruct>();
+		HashMap<String, String> columns = new HashMap<String, String>();
+		for(String sample:Parameters.sampleNames)
+		{
+			for(String barcode:Parameters.barcodes)
+			{
+				String column = sample + "\t" + barcode;
+				if(samples.containsKey(column)) continue;
+				samples.put(column, new ResultStruct(Global.getNbFeatures(), barcode));
+				columns.put(column, Parameters.doDemultiplexing?(sample + "_" + Global.mappingBarcodeName.get(barcode)):sample);
+			}
+		}
+		
+		// Biggest files first, for balancing the load
+		int nbFiles = Parameters.inputBAMFiles.size();
+		Integer[] order = new Integer[nbFiles];
+		for(int i = 0; i < nbFiles; i++) order[i] = i;
+		Arrays.sort(order, (i1, i2) -> Long.compare(Parameters.inputBAMFiles.get(i2).length(), Parameters.inputBAMFiles.get(i1).length()));
+		
+		if(nbFiles >= Parameters.nbThreads)
+		{
+			System.out.println("\nReading the " + nbFiles + " BAM files concurrently, with " + Parameters.nbThreads + " threads");
+			ExecutorService pool = Executors.newFixedThreadPool(Parameters.nbThreads);
+			ExecutorService inflaterPool = (Parameters.nbInflaterThreads > 1)?Executors.newFixedThreadPool(Parameters.nbInflaterThreads):null; // Shared by all files
+			int maxBufferedMates = Math.max(Parameters.maxBufferedMates / Parameters.nbThreads, 1); // The memory budget is shared too
+			ArrayList<Future<HashMap<String, ResultStruct>>> futures = new ArrayList<Future<HashMap<String, ResultStruct>>>();
+			for(int i:order)
+			{
+				File bam = Parameters.inputBAMFiles.get(i);
+				futures.add(pool.submit(() -> readBAM(bam, inflaterPool, maxBufferedMates)));
+			}
+			for(int n = 0; n < nbFiles; n++)
+			{
+				try
+				{
+					addSample(samples, Parameters.sampleNames.get(order[n]), futures.get(n).get());
+				}
+				catch(InterruptedException e)
+				{
+					new ErrorMessage(e.getMessage());
+				}
+				catch(ExecutionException ee)
+				{
+					pool.shutdownNow();
+					new ErrorMessage("A reading thread failed: " + ee.getCause());
+				}
+				futures.set(n, null); // Release memory
+			}
+			pool.shutdown();
+			if(inflaterPool != null)
+			{
+				inflaterPool.shutdown();
+				PipelinedBgzfInputStream.releaseInflaters();
+			}
+		}
+		else
+		{
+			for(int i:order)
+			{
+				File bam = Parameters.inputBAMFiles.get(i);
+				addSample(samples, Parameters.sampleNames.get(i), (Parameters.nbThreads == 1)?readBAM(bam, null, Parameters.maxBufferedMates):readBAMParallel(bam));
+			}
+		}
+		Global.mappingBarcodeName = columns;
+		return samples;
+	}
+	
+	/**
+	 * Write the split index of all the BAM files of --bam (--split-index). Streams and CRAM files do not need one
+	 */
+	public static void writeSplitIndexes()
+	{
+		for(File bam:Parameters.inputBAMFiles)
+		{
+			try
+			{
+				if(StreamSamReader.isStream(bam) || CustomCramReader.isCram(bam)) new WarningMessage(bam + " is not a BGZF compressed BAM file, it has no split index");
+				else
+				{
+					System.out.println("Indexing the records of " + bam);
+					SplitIndex.build(bam, Parameters.nbThreads);
+				}
+			}
+			catch(IOException ioe)
+			{
+				new ErrorMessage(ioe.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * @return the names of the reference sequences of all the BAM files of --bam (from their headers), or null if they cannot be known before reading them (streams)
+	 */
+	public static HashSet<String> getReferenceNames()
+	{
+		HashSet<String> names = new HashSet<String>();
+		for(File bam:Parameters.inputBAMFiles)
+		{
+			try
+			{
+				if(StreamSamReader.isStream(bam)) return null; // Can only be read once
+				Closeable reader;
+				SAMFileHeader header;
+				if(CustomCramReader.isCram(bam))
+				{
+					CustomCramReader cramReader = new CustomCramReader(bam.getAbsolutePath());
+					reader = cramReader;
+					header = cramReader.getFileHeader();
+				}
+				else
+				{
+					CustomSamReader samReader = new CustomSamReader(bam.getAbsolutePath());
+					reader = samReader;
+					header = samReader.getFileHeader();
+				}
+				for(SAMSequenceRecord sequence:header.getSequenceDictionary().getSequences()) names.add(sequence.getSequenceName());
+				CloserUtil.close(reader);
+			}
+			catch(IOException ioe)
+			{
+				new ErrorMessage(ioe.getMessage());
+			}
+		}
+		return names;
+	}
+	
+	/**
+	 * Add the results of one BAM file to the columns of its sample
+	 */
+	private static void addSample(HashMap<String, ResultStruct> samples, String sample, HashMap<String, ResultStruct> results)
+	{
+		for(String barcode:results.keySet()) samples.get(sample + "\t" + barcode).add(results.get(barcode));
 	}
 	
-	public static HashMap<String, ResultStruct> readBAM()
+	/**
+	 * Read a BAM file as one thread (but possibly inflating the BGZF blocks with several threads)
+	 * @param inflaterPool threads inflating the BGZF blocks, or null for creating them here (if --inflater-threads)
+	 * @param maxBufferedMates max number of reads waiting for their mate in memory (paired-end)
+	 */
+	private static HashMap<String, ResultStruct> readBAM(File bam, ExecutorService inflaterPool, int maxBufferedMates)
 	{
-		init();
+		HashMap<String, ResultStruct> results = initResults();
+		MateBuffer pairedBuffer = null;
+		if(Parameters.is_paired)
+		{
+			pairedBuffer = new MateBuffer(false);
+			pairedBuffer.enableSpilling(maxBufferedMates);
+		}
 		Long start = System.currentTimeMillis();
 		Long previous = start;
 		
-		// Reading file as one thread
 		long nbReads = 0; // processed reads
-		SamReaderFactory samReaderFactory = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT);
-		SamReader samReader = samReaderFactory.open(Parameters.inputBAMFile);
-		SAMRecordIterator it = samReader.iterator();
+		Closeable mySAMReader = null; // CustomSamReader, CustomCramReader, or StreamSamReader if the file cannot be seeked (stdin, FIFO, SAM...)
+		boolean ownInflaterPool = (inflaterPool == null && Parameters.nbInflaterThreads > 1);
+		InputStream in = null;
+		BamRecordView samRecord = null; // Reused for all records
+		SplitIndex.Recorder splitOffsets = null; // Written as a side effect of this run, if the BAM file has no split index yet
+		SAMFileHeader header = null;
+		ReferenceFeatures previousFile = null;
+		try
+		{
+			if(ownInflaterPool) inflaterPool = Executors.newFixedThreadPool(Parameters.nbInflaterThreads);
+			if(StreamSamReader.isStream(bam))
+			{
+				StreamSamReader reader = new StreamSamReader(bam, inflaterPool);
+				System.out.println("\n" + (StreamSamReader.isStdin(bam)?"Standard input":bam.getName()) + " is read as a stream (" + reader.format + ")");
+				in = reader.open();
+				header = reader.getFileHeader();
+				mySAMReader = reader;
+			}
+			else if(CustomCramReader.isCram(bam))
+			{
+				CustomCramReader reader = new CustomCramReader(bam.getAbsolutePath());
+				in = reader.open();
+				header = reader.getFileHeader();
+				mySAMReader = reader;
+			}
+			else
+			{
+				CustomSamReader reader = new CustomSamReader(bam.getAbsolutePath());
+				in = reader.open(inflaterPool);
+				header = reader.getFileHeader();
+				mySAMReader = reader;
+				if(SplitIndex.open(bam) == null) splitOffsets = new SplitIndex.Recorder();
+			}
+			samRecord = new BamRecordView(header);
+			if(pairedBuffer != null) pairedBuffer.setOrder(header);
+			previousFile = Forest.setFile(header, header.getSortOrder() == SortOrder.coordinate);
+		}
+		catch(IOException ioe)
+		{
+			new ErrorMessage(ioe.getMessage());
+		}
 		
 		// Start reading BAM file
-		System.out.println("\nReading the reads from the BAM file provided: " + Parameters.inputBAMFile);
-		while(it.hasNext())
+		System.out.println("\nReading the reads from the BAM file provided: " + bam);
+		long vo = (splitOffsets != null)?((LocationAware)in).getPosition():0;
+		while(readNext(samRecord, in, results, pairedBuffer))
 		{
-			SAMRecord samRecord = it.next();
 			nbReads++;
-			BAM.processRecord(samRecord, results, pairedBuffer);
+			if(splitOffsets != null)
+			{
+				splitOffsets.add(vo);
+				vo = ((LocationAware)in).getPosition();
+			}
 			
 			if(nbReads % 10000000 == 0) {System.out.println(nbReads + " reads were processed from BAM file [" + Utils.toReadableTime(System.currentTimeMillis() - start) + "], Diff = " + Utils.toReadableTime(System.currentTimeMillis() - previous)); previous = System.currentTimeMillis();}
 			if(nbReads % 100000 == 0)
@@ -70,107 +298,283 @@ public class JobDispatcher
 				}
 			}
 		}
-		try 
+		CloserUtil.close(mySAMReader);
+		if(splitOffsets != null) splitOffsets.write(bam, vo);
+		if(pairedBuffer != null)
 		{
-			samReader.close();
-		} 
-		catch (IOException ioe) 
+			Forest.setFile(header, false); // Spilled pairs are in name order
+			pairedBuffer.pairSpilled(results);
+		}
+		Forest.restoreFile(previousFile);
+		if(ownInflaterPool)
 		{
-			new ErrorMessage(ioe.getMessage());
+			inflaterPool.shutdown();
+			PipelinedBgzfInputStream.releaseInflaters();
 		}
 		System.out.println(nbReads + " reads were processed from BAM file [" + Utils.toReadableTime(System.currentTimeMillis() - start) + "]");
-		printResultSummary();
+		printResultSummary(bam, results);
 		return results;
 	}
 	
-	public static HashMap<String, ResultStruct> readBAMParallel()
+	/**
+	 * Read a BAM file with all threads, in partitions
+	 */
+	private static HashMap<String, ResultStruct> readBAMParallel(File bam)
 	{
-		init();
+		try
+		{
+			if(StreamSamReader.isStream(bam))
+			{
+				System.out.println("\n" + (StreamSamReader.isStdin(bam)?"Standard input":bam.getName()) + " cannot be split, so it is read as one thread (with " + Parameters.nbThreads + " threads inflating its BGZF blocks, if any)");
+				ExecutorService inflaterPool = Executors.newFixedThreadPool(Parameters.nbInflaterThreads > 1?Parameters.nbInflaterThreads:Parameters.nbThreads);
+				HashMap<String, ResultStruct> results = readBAM(bam, inflaterPool, Parameters.maxBufferedMates);
+				inflaterPool.shutdown();
+				PipelinedBgzfInputStream.releaseInflaters();
+				return results;
+			}
+		}
+		catch(IOException ioe)
+		{
+			new ErrorMessage(ioe.getMessage());
+		}
+		HashMap<String, ResultStruct> results = initResults();
 		Long start = System.currentTimeMillis();
 		
 		long nbReads = 0; // processed reads
-		ArrayList<Job> myjobs = new ArrayList<Job>(); // All threads
-		String filePath = Parameters.inputBAMFile.getAbsolutePath();
+		ArrayList<Job> myjobs = new ArrayList<Job>(); // All units of work, in file order
+		String filePath = bam.getAbsolutePath();
 		
-		long size = Utils.getFileSize(filePath);
-		long offset = size - size / Parameters.nbThreads; // Start by last block to know to which Read the thread needs to stop
-		SAMRecord lastSAMRecord = null;
-		
-		// First, create the job pool
-		for(int n_job = 1; n_job <= Parameters.nbThreads; n_job++)
+		// First, split the file in many small record-exact ranges [split_i, split_i+1), so that threads balance the load (at least 4 per thread)
+		int nbUnits = (int)Math.max(Parameters.nbThreads * 4, bam.length() / UNIT_SIZE);
+		long[] splits = null;
+		boolean exactSplits = false; // Boundaries from the index (or CRAM slices) do not need to be validated
+		boolean cram = false;
+		SplitIndex.Recorder splitOffsets = null; // Written as a side effect of this run, if the BAM file has no split index yet
+		SAMFileHeader header = null; // For pairing the reads left by the jobs
+		try
 		{
-			//System.out.println("Creating Thread " + n_job);
-			try
+			cram = CustomCramReader.isCram(bam);
+			if(cram) // Ranges of slices
+			{
+				CustomCramReader myCRAMReader = new CustomCramReader(filePath);
+				header = myCRAMReader.getFileHeader();
+				splits = myCRAMReader.computeSplits(nbUnits);
+				exactSplits = true;
+				myCRAMReader.close();
+			}
+			else
 			{
 				CustomSamReader mySAMReader = new CustomSamReader(filePath);
-				if(n_job == Parameters.nbThreads) offset = 0; // Start at first read
-				CloseableIterator<SAMRecord> it = mySAMReader.queryAtOffset(offset);
-				
-				if(it.hasNext()) 
+				header = mySAMReader.getFileHeader();
+				SplitIndex splitIndex = SplitIndex.open(bam);
+				BamIndexReader index = (splitIndex == null && mySAMReader.sortOrder == SortOrder.coordinate)?BamIndexReader.open(bam):null;
+				if(splitIndex != null) // Exact ranges of the same size
 				{
-					SAMRecord samRecord = null; 
-					if(n_job != Parameters.nbThreads) samRecord = it.next(); // Not for the first
-					
-					// Create part result struct
-					HashMap<String, ResultStruct> result_tmp = new HashMap<String, ResultStruct>();
-					for(String barcode:Parameters.barcodes) result_tmp.put(barcode, new ResultStruct(Global.geneIndex.size(), barcode));
-					
-					Job thread = new Job(it, mySAMReader, lastSAMRecord, result_tmp, pairedBuffer);
-					thread.setDaemon(true);
-					thread.start();
-					
-					lastSAMRecord = samRecord; // For next thread
-					
-					offset = offset - size / Parameters.nbThreads;
-					myjobs.add(thread);
+					System.out.println("Using split index " + splitIndex.indexFile + " to split the BAM file");
+					splits = splitIndex.computeSplits(nbUnits, bam.length());
+					exactSplits = true;
 				}
-			}
-			catch(IOException ioe)
-			{
-				new ErrorMessage(ioe.getMessage());
+				else if(index != null) // Exact ranges by reference sequence/genomic chunks
+				{
+					System.out.println("Using index " + index.indexFile + " to split the BAM file");
+					splits = mySAMReader.computeIndexSplits(index, nbUnits);
+					exactSplits = true;
+				}
+				else splits = mySAMReader.computeSplits(nbUnits); // Guessed ranges
+				if(splitIndex == null) splitOffsets = new SplitIndex.Recorder();
+				mySAMReader.close();
 			}
 		}
+		catch(IOException ioe)
+		{
+			new ErrorMessage(ioe.getMessage());
+		}
 		
-		// Create Mama thread, waiting for the other to finish, and compiling the results
-		while(true)
+		// Pool of threads inflating the BGZF blocks, shared by all jobs
+		ExecutorService inflaterPool = Executors.newFixedThreadPool(Parameters.nbInflaterThreads > 1?Parameters.nbInflaterThreads:Parameters.nbThreads);
+		
+		// Then, submit all jobs to a work-stealing pool of nbThreads threads
+		ForkJoinPool pool = new ForkJoinPool(Parameters.nbThreads);
+		CompletionService<Job> completion = new ExecutorCompletionService<Job>(pool);
+		ArrayList<Future<Job>> futures = new ArrayList<Future<Job>>();
+		for(int n_job = 0; n_job < splits.length; n_job++)
+		{
+			long end = (n_job == splits.length - 1)?Long.MAX_VALUE:splits[n_job + 1]; // Last job reads until EOF
+			Job job = createJob(filePath, cram, splits[n_job], end, inflaterPool, splitOffsets != null);
+			myjobs.add(job);
+			futures.add(completion.submit(job));
+		}
+		
+		// Wait for the jobs to finish, reporting progress every second. The first failed job stops the run (unless it may have started on a misdetected boundary)
+		// Finished jobs are validated and merged in the order of the file, as soon as possible (so that their memory is released)
+		int nbMerged = 0;
+		long nbMergedReads = 0;
+		Job previous = null; // Last merged job
+		MateBuffer orphans = null; // Reads of the merged jobs still waiting for their mate (spilled to disk when there are too many)
+		if(Parameters.is_paired)
+		{
+			orphans = new MateBuffer(false);
+			orphans.enableSpilling(Parameters.maxBufferedMates);
+		}
+		ReferenceFeatures previousFile = Forest.setFile(header, false); // Orphans are paired by this thread, in file order
+		long lastPrint = start;
+		while(nbMerged < myjobs.size())
 		{
-			int nbFinished = 0;
-			nbReads = 0;
-			for(Job j:myjobs)
+			try
 			{
-				nbReads += j.nbReads;
-				if(j.getState() == State.TERMINATED) nbFinished++;
+				Future<Job> done = completion.poll(1, TimeUnit.SECONDS);
+				if(done != null)
+				{
+					Job job = done.get();
+					if(job.error != null && (exactSplits || job.startVirtualOffset == splits[0])) failed(job, pool, inflaterPool);
+				}
+				while(nbMerged < myjobs.size() && futures.get(nbMerged).isDone())
+				{
+					Job job = futures.get(nbMerged).get();
+					
+					// Validate the boundaries: each job should have stopped exactly where the next one started. If not, the guessed boundary was wrong, so we rerun the next job from the true boundary
+					if(job.error != null && (exactSplits || previous == null)) failed(job, pool, inflaterPool);
+					if(previous != null && (previous.stopVirtualOffset != job.startVirtualOffset || job.error != null)) // A job starting on a wrong boundary may also fail
+					{
+						System.out.println("Boundary of partition " + nbMerged + " was misdetected. Re-reading it from the true boundary.");
+						job = rerun(createJob(filePath, cram, previous.stopVirtualOffset, job.endVirtualOffset, inflaterPool, splitOffsets != null), pool, inflaterPool);
+					}
+					
+					if(Parameters.is_paired)
+					{
+						// A read waiting for its mate should be paired with the first read of the same name in this job. If the job already paired this name (multiple mapped reads), this pair is undone: only its two records are read again
+						MateBuffer mates = job.getPairedBuffer();
+						TIntArrayList undone = mates.findPairs(orphans);
+						mates.undoPairs(undone, undone.isEmpty()?null:readRecords(job, mates.getPairRecords(undone)), job.getResults());
+						
+						// Pair the reads of this job still waiting for their mate with the waiting reads, in the order of the file
+						for(Read read2:mates.getOrphans())
+						{
+							Read read1 = orphans.takeMate(read2);
+							if(read1 != null) BAM.processPair(read1, read2, results.get(read2.barcode));
+						}
+					}
+					
+					// Merge the results
+					HashMap<String, ResultStruct> result_tmp = job.getResults();
+					for(String barcode:result_tmp.keySet())
+					{
+						ResultStruct res = result_tmp.get(barcode);
+						results.get(barcode).add(res);
+					}
+					nbMergedReads += job.nbReads;
+					if(splitOffsets != null) splitOffsets.addAll(job.splitOffsets);
+					previous = job;
+					myjobs.set(nbMerged, null); // Release memory
+					nbMerged++;
+				}
 			}
-			if(nbFinished == myjobs.size()) break;
-			System.out.println(nbReads + " reads were processed from BAM file [" + Utils.toReadableTime(System.currentTimeMillis() - start) + "]");
-			try
+			catch(InterruptedException e)
 			{
-				Thread.sleep(1000);
+				new ErrorMessage(e.getMessage());
 			}
-			catch(InterruptedException ie)
+			catch(ExecutionException ee)
 			{
-				new ErrorMessage(ie.getMessage());
+				pool.shutdownNow();
+				inflaterPool.shutdownNow();
+				new ErrorMessage("A reading thread failed: " + ee.getCause());
 			}
-		}
-		
-		// Merge all results
-		for(Job j:myjobs)
-		{
-			HashMap<String, ResultStruct> result_tmp = j.getResults();
-			for(String barcode:result_tmp.keySet())
+			if(System.currentTimeMillis() - lastPrint >= 1000)
 			{
-				ResultStruct res = result_tmp.get(barcode);
-				results.get(barcode).add(res);
+				nbReads = nbMergedReads;
+				for(Job j:myjobs) if(j != null) nbReads += j.nbReads;
+				System.out.println(nbReads + " reads were processed from BAM file [" + Utils.toReadableTime(System.currentTimeMillis() - start) + "]");
+				lastPrint = System.currentTimeMillis();
 			}
 		}
+		if(orphans != null) orphans.pairSpilled(results);
+		Forest.restoreFile(previousFile);
+		pool.shutdown();
+		inflaterPool.shutdown();
+		PipelinedBgzfInputStream.releaseInflaters();
+		nbReads = nbMergedReads;
+		if(splitOffsets != null) splitOffsets.write(bam, previous.stopVirtualOffset); // All boundaries were validated
 		
 		System.out.println(nbReads + " reads were processed from BAM file [" + Utils.toReadableTime(System.currentTimeMillis() - start) + "]");
-		printResultSummary();
+		printResultSummary(bam, results);
 		return results;
 	}
 	
-	public static void printResultSummary()
+	private static boolean readNext(BamRecordView samRecord, InputStream in, HashMap<String, ResultStruct> results, MateBuffer pairedBuffer)
+	{
+		try
+		{
+			return BAM.readRecord(samRecord, in, results, pairedBuffer);
+		}
+		catch(IOException ioe)
+		{
+			new ErrorMessage(ioe.getMessage());
+		}
+		return false;
+	}
+	
+	/**
+	 * Stop the run because of this job
+	 */
+	private static void failed(Job job, ExecutorService pool, ExecutorService inflaterPool)
+	{
+		pool.shutdownNow();
+		inflaterPool.shutdownNow();
+		if(job.error instanceof InvalidRecordException) new ErrorMessage(job.error.getMessage()); // Same error as when reading as one thread
+		new ErrorMessage("A reading thread failed: " + job.error);
+	}
+	
+	/**
+	 * Run a job in this thread
+	 * @return the job, once it succeeded
+	 */
+	private static Job rerun(Job job, ExecutorService pool, ExecutorService inflaterPool)
+	{
+		job.call();
+		if(job.error != null) failed(job, pool, inflaterPool);
+		return job;
+	}
+	
+	/**
+	 * Read again some records of a merged job (see Job.readRecords)
+	 */
+	private static Read[] readRecords(Job job, long[] numbers)
+	{
+		try
+		{
+			return job.readRecords(numbers);
+		}
+		catch(IOException ioe)
+		{
+			new ErrorMessage("Cannot read the partition starting at " + job.startVirtualOffset + " again: " + ioe.getMessage());
+		}
+		return null;
+	}
+	
+	/**
+	 * @param recordSplits keep the virtual offsets of the records, for writing the split index
+	 */
+	private static Job createJob(String filePath, boolean cram, long startVirtualOffset, long endVirtualOffset, ExecutorService inflaterPool, boolean recordSplits)
+	{
+		// Create part result struct
+		HashMap<String, ResultStruct> result_tmp = new HashMap<String, ResultStruct>();
+		for(String barcode:Parameters.barcodes) result_tmp.put(barcode, new ResultStruct(Global.getNbFeatures(), barcode));
+		
+		// Create part mate buffer
+		MateBuffer mates = null;
+		if(Parameters.is_paired) mates = new MateBuffer(true);
+		
+		Job job = new Job(filePath, cram, startVirtualOffset, endVirtualOffset, result_tmp, mates, inflaterPool);
+		if(recordSplits) job.splitOffsets = new SplitIndex.Recorder(true);
+		return job;
+	}
+	
+	/**
+	 * Print the summary of the results of a BAM file (files read concurrently print it one at a time)
+	 */
+	public static synchronized void printResultSummary(File bam, HashMap<String, ResultStruct> results)
 	{
+		if(Parameters.inputBAMFiles.size() > 1) System.out.println("\n[" + bam.getName() + "]");
 		ResultStruct summary = new ResultStruct();
 		for(String barcode:results.keySet())
 		{
@@ -1,60 +1,37 @@
 package com.frc.gtf;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileReader;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.zip.GZIPInputStream;
 
+import com.errors.ErrorMessage;
+import com.frc.parallel.LineChunkReader;
 import com.frc.parameters.Global;
 import com.frc.parameters.Parameters;
 import com.intervals.Forest;
-import com.intervals.IntervalLabelled;
+import com.intervals.IndexCache;
 
 public class GTF 
 {
+	private static int nbExons = 0;
+	private static int nbGenes = 0;
+	private static LinkedHashMap<String, String> uniqueGenes = null; // Stores gene_id -> gene_name, in the order of appearance in the GTF file
+
 	public static void readGTF() throws Exception
 	{
 		System.out.println("\nReading GTF file provided: " + Parameters.inputGTFFile.getAbsolutePath());
+		if(!Parameters.writeIndexCache && IndexCache.load(Parameters.inputGTFFile)) return;
+		checkExtension(Parameters.inputGTFFile);
 		Global.geneIndex = new HashMap<String, Integer>(); // Fill this as we go
 		Global.mappingGeneIdGeneName = new HashMap<String, String>(); // For filling final matrices
-		BufferedReader br = openGTF(Parameters.inputGTFFile);
-		String line = br.readLine();
 		if(!Parameters.use_bam_tags) Forest.init();
-		int nbExons = 0;
-		int nbGenes = 0;
-		LinkedHashMap<String, String> uniqueGenes = new LinkedHashMap<>(); // Stores gene_id -> gene_name, in the order of appearance in the GTF file
-		while(line != null)
-		{
-	    	if(!line.startsWith("#"))
-    		{
-				GTFLine infos = parseGTFLine(line);
-				if(infos != null)
-				{
-		    		if(infos.gene_name == null) infos.gene_name = infos.gene_id;
-					// Which type is it?
-					if(infos.type.equals("exon")) 
-					{
-						if(!Parameters.use_bam_tags) Forest.addToTree(infos.chr, new IntervalLabelled((int)infos.start, (int)infos.end, infos.gene_id, infos.strand));
-						//if(uniqueGeneId.add(infos.gene_id)) uniqueGeneName.add(infos.gene_name);
-						uniqueGenes.putIfAbsent(infos.gene_id, infos.gene_name);
-						nbExons++;
-					}
-					else if(infos.type.equals("gene"))
-					{
-						Global.geneIndex.put(infos.gene_id, nbGenes);
-						Global.mappingGeneIdGeneName.put(infos.gene_id, infos.gene_name);
-						nbGenes++;
-					}
-				}
-			}
-			line = br.readLine();
-		}
-		br.close();
+		nbExons = 0;
+		nbGenes = 0;
+		uniqueGenes = new LinkedHashMap<>();
+		LineChunkReader.read(Parameters.inputGTFFile, Parameters.nbThreads, GTF::parseChunk, GTF::addLines); // Chunks are parsed in parallel, and added in order
 		
 		if(nbGenes == 0) {
 			System.out.println("No Genes were detected in the GTF file. Probably the \"gene\" annotation is missing from the GTF file 3rd column?");
@@ -67,146 +44,124 @@ public class GTF
 		}
 
 		System.out.println(nbExons + " 'exons' are annotating " + uniqueGenes.size() + " unique genes in the provided GTF file. In total " + nbGenes + " 'gene' annotations are found in the GTF file.");
+		uniqueGenes = null;
 		
 		if(nbGenes == 0) {
 			System.err.println("We couldn't parse the GTF file. Please report this problem if the GTF is in standard format. Or use another GTF from another source.");
 			System.exit(-1);
 		}
+		if(!Parameters.use_bam_tags) Forest.build();
+		if(Parameters.writeIndexCache) IndexCache.write(Parameters.inputGTFFile);
 	}
 	
 	/**
-	 * Fastest parsing of a GTF line
-	 * @param line
-	 * @return
+	 * Add the exons and genes of a parsed chunk, in the order of the GTF file
 	 */
-	private static GTFLine parseGTFLine(String line)
+	private static void addLines(ArrayList<GTFLine> lines)
 	{
-		GTFLine res = new GTFLine();
-		int pos = 0, end = 0;
-		char c;
-		
-		// Chromosome
-		while(line.charAt(end) != '\t') end++; // or line.indexOf() should be equivalent
-		res.chr = line.substring(pos, end);
-		end++; pos = end;
-		
-		// Skip source
-		while(line.charAt(end) != '\t') end++;
-		end++; pos = end;
-		
-		// Type
-		while(line.charAt(end) != '\t') end++;
-		res.type = line.substring(pos, end);
-		if(!res.type.equals("exon") && !res.type.equals("gene")) return null;
-		end++; pos = end;
-		
-		// Start
-		while(line.charAt(end) != '\t') end++;
-		res.start = Long.parseLong(line.substring(pos, end));
-		end++; pos = end;
-
-		// End
-		while(line.charAt(end) != '\t') end++;
-		res.end = Long.parseLong(line.substring(pos, end));
-		end++; pos = end;
-		
-		// Ignore
-		while(line.charAt(end) != '\t') end++;
-		end++; pos = end;
-		
-		// Strand
-		while(line.charAt(end) != '\t') end++;
-		res.strand = line.substring(pos, end).equals("+") ;
-		end++; pos = end;
-		
-		// Ignore
-		while(line.charAt(end) != '\t') end++;
-		end++; pos = end;
-		
-		// Info
-		int found = 0;
-		// I don't know which one gene_id / gene_name comes first, so using indexOf() will run twice the sequence from the start 
-		for(int i = pos; i < line.length(); i++) // So ugly... But should be optimized.... but sorry for that...
+		for(GTFLine infos:lines)
+		{
+			// Which type is it?
+			if(infos.exon) 
+			{
+				if(!Parameters.use_bam_tags) Forest.addToTree(infos.chr, (int)infos.start, (int)infos.end, infos.gene_id, infos.strand);
+				uniqueGenes.putIfAbsent(infos.gene_id, infos.gene_name);
+				nbExons++;
+			}
+			else
+			{
+				Global.geneIndex.put(infos.gene_id, nbGenes);
+				Global.mappingGeneIdGeneName.put(infos.gene_id, infos.gene_name);
+				nbGenes++;
+			}
+		}
+	}
+	
+	/**
+	 * Parse the exon and gene lines of a chunk of the GTF file (any thread)
+	 */
+	private static ArrayList<GTFLine> parseChunk(ByteBuffer b)
+	{
+		ArrayList<GTFLine> lines = new ArrayList<>();
+		GTFLine previous = null;
+		int limit = b.limit();
+		for(int pos = b.position(); pos < limit;)
 		{
-			if(found == 2) break;
-			if(line.charAt(i) == 'g')
+			int next = LineChunkReader.lineEnd(b, pos, limit);
+			int end = LineChunkReader.trimCR(b, pos, next);
+			if(end > pos && b.get(pos) != '#')
 			{
-				i++;
-				if(line.charAt(i) == 'e')
+				GTFLine infos = parseGTFLine(b, pos, end, previous);
+				if(infos != null)
 				{
-					i++;
-					if(line.charAt(i) == 'n')
-					{
-						i++;
-						if(line.charAt(i) == 'e')
-						{
-							i++;
-							if(line.charAt(i) == '_')
-							{
-								i++;
-								if(line.charAt(i) == 'i')
-								{
-									i++;
-									if(line.charAt(i) == 'd')
-									{
-										i++;				
-										c = line.charAt(i);
-										while(c == ' ' || c == '\"') { i++; c = line.charAt(i);}
-										pos = i;
-										while(c != ' ' && c != '\"') { i++; c = line.charAt(i); }
-										res.gene_id = line.substring(pos, i);
-										found++;
-									}
-								}
-								else if(line.charAt(i) == 'n')
-								{
-									i++;
-									if(line.charAt(i) == 'a')
-									{
-										i++;
-										if(line.charAt(i) == 'm')
-										{
-											i++;
-											if(line.charAt(i) == 'e')
-											{
-												i++;				
-												c = line.charAt(i);
-												while(c == ' ' || c == '\"') { i++; c = line.charAt(i);}
-												pos = i;
-												while(c != ' ' && c != '\"') { i++; c = line.charAt(i); }
-												res.gene_name = line.substring(pos, i);
-												found++;
-											}
-										}
-									}
-								}
-							}
-						}
-					}
+					if(infos.gene_name == null) infos.gene_name = infos.gene_id;
+					lines.add(infos);
+					previous = infos;
 				}
 			}
+			pos = next + 1;
 		}
-		
-		return res;
+		return lines;
 	}
 	
-	private static BufferedReader openGTF(File gtf) throws Exception
+	/**
+	 * Fastest parsing of a GTF line, on its bytes
+	 * @param previous previous line, whose Strings are reused when they are the same (e.g. the chromosome, or the gene_id of the exons of a gene)
+	 * @return null if it is not an exon or a gene
+	 */
+	private static GTFLine parseGTFLine(ByteBuffer b, int from, int to, GTFLine previous)
 	{
-		if(gtf.getAbsolutePath().endsWith(".gtf"))
+		GTFLine res = new GTFLine();
+		int[] tabs = new int[8];
+		int pos = from;
+		for(int i = 0; i < tabs.length; i++)
 		{
-			return new BufferedReader(new FileReader(gtf));
+			pos = LineChunkReader.nextTab(b, pos, to);
+			if(pos == to) new ErrorMessage("This GTF line does not have 9 columns: " + LineChunkReader.toString(b, from, to, null));
+			tabs[i] = pos++;
 		}
-		else if(gtf.getAbsolutePath().endsWith(".gtf.gz"))
+		
+		// Type
+		if(LineChunkReader.equals(b, tabs[1] + 1, tabs[2], "exon")) res.exon = true;
+		else if(!LineChunkReader.equals(b, tabs[1] + 1, tabs[2], "gene")) return null;
+		
+		res.chr = LineChunkReader.toString(b, from, tabs[0], (previous == null)?null:previous.chr);
+		res.start = LineChunkReader.parseLong(b, tabs[2] + 1, tabs[3]);
+		res.end = LineChunkReader.parseLong(b, tabs[3] + 1, tabs[4]);
+		res.strand = LineChunkReader.equals(b, tabs[5] + 1, tabs[6], "+");
+		
+		// Info: gene_id / gene_name, in any order
+		int found = 0;
+		for(int i = tabs[7] + 1; i < to && found < 2; i++)
 		{
-			return new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(gtf))));
+			if(b.get(i) != 'g') continue;
+			boolean id = startsWith(b, i, to, "gene_id");
+			if(!id && !startsWith(b, i, to, "gene_name")) continue;
+			i += id?7:9;
+			while(i < to && (b.get(i) == ' ' || b.get(i) == '\"')) i++;
+			int start = i;
+			while(i < to && b.get(i) != ' ' && b.get(i) != '\"') i++;
+			if(id) res.gene_id = LineChunkReader.toString(b, start, i, (previous == null)?null:previous.gene_id);
+			else res.gene_name = LineChunkReader.toString(b, start, i, (previous == null)?null:previous.gene_name);
+			found++;
 		}
-		else
+		
+		return res;
+	}
+	
+	private static boolean startsWith(ByteBuffer b, int from, int to, String s)
+	{
+		return to - from >= s.length() && LineChunkReader.equals(b, from, from + s.length(), s);
+	}
+	
+	private static void checkExtension(File gtf)
+	{
+		if(!gtf.getAbsolutePath().endsWith(".gtf") && !gtf.getAbsolutePath().endsWith(".gtf.gz"))
 		{
 			System.err.println("The extension of the GTF file is not recognized : " + gtf.getAbsolutePath());
 			System.err.println("It should be '.gtf', or '.gtf.gz'");
 			System.exit(-1);
 		}
-		return null;
 	}
 }
 
@@ -215,7 +170,7 @@ class GTFLine
 	long start;
 	long end;
 	String chr;
-	String type;
+	boolean exon; // Else, a gene
 	boolean strand;
 	String gene_id;
 	String gene_name;
@@ -0,0 +1,147 @@
+package com.frc.parallel;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+
+/**
+ * Reads the virtual offsets stored in a .bai or .csi index of a coordinate-sorted BAM file, for splitting it in exact ranges of records:
+ * - the range of each reference sequence (from the metadata pseudo-bin)
+ * - the first record of genomic windows inside each reference (from the linear index for .bai, from the deepest bins for .csi)
+ * All these offsets are record starts, so no boundary needs to be guessed
+ */
+public class BamIndexReader
+{
+	private static final int BAI_PSEUDO_BIN = 37450;
+
+	public final File indexFile;
+	public long[] refStart; // Virtual offset of the first record of each reference, -1 if the reference has no record
+	public long[] refEnd; // Virtual offset just after the last record of each reference
+	public long[][] refWindows; // Sorted virtual offsets of records starting genomic windows inside each reference
+
+	private BamIndexReader(File indexFile) throws IOException
+	{
+		this.indexFile = indexFile;
+		String name = indexFile.getName();
+		if(name.endsWith(".csi"))
+		{
+			InputStream in = new BlockCompressedInputStream(indexFile);
+			readCSI(new BinaryCodec(in));
+			in.close();
+		}
+		else
+		{
+			InputStream in = new BufferedInputStream(new FileInputStream(indexFile));
+			readBAI(new BinaryCodec(in));
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the index of this BAM file (file.bam.bai, file.bai or file.bam.csi), or null if there is none
+	 */
+	public static BamIndexReader open(File bamFile) throws IOException
+	{
+		String path = bamFile.getAbsolutePath();
+		String prefix = path.endsWith(".bam")?path.substring(0, path.length() - 4):path;
+		for(String candidate:new String[] { path + ".bai", prefix + ".bai", path + ".csi", prefix + ".csi" })
+		{
+			File f = new File(candidate);
+			if(f.isFile() && f.lastModified() >= bamFile.lastModified()) return new BamIndexReader(f);
+		}
+		return null;
+	}
+
+	private void readBAI(BinaryCodec codec) throws IOException
+	{
+		byte[] magic = new byte[4];
+		codec.readBytes(magic);
+		if(magic[0] != 'B' || magic[1] != 'A' || magic[2] != 'I' || magic[3] != 1) throw new IOException("Invalid BAI index: " + indexFile);
+		int nbRefs = codec.readInt();
+		init(nbRefs);
+		for(int r = 0; r < nbRefs; r++)
+		{
+			int nbBins = codec.readInt();
+			for(int b = 0; b < nbBins; b++)
+			{
+				long bin = codec.readUInt();
+				int nbChunks = codec.readInt();
+				for(int c = 0; c < nbChunks; c++)
+				{
+					long begin = codec.readLong();
+					long end = codec.readLong();
+					if(bin == BAI_PSEUDO_BIN && c == 0) { refStart[r] = begin; refEnd[r] = end; } // Second chunk is the number of mapped/unmapped reads
+				}
+			}
+			int nbIntervals = codec.readInt();
+			long[] windows = new long[nbIntervals];
+			for(int i = 0; i < nbIntervals; i++) windows[i] = codec.readLong(); // Linear index: first record overlapping each 16kb window
+			refWindows[r] = sortWindows(windows, windows.length, r);
+		}
+	}
+
+	private void readCSI(BinaryCodec codec) throws IOException
+	{
+		byte[] magic = new byte[4];
+		codec.readBytes(magic);
+		if(magic[0] != 'C' || magic[1] != 'S' || magic[2] != 'I' || magic[3] != 1) throw new IOException("Invalid CSI index: " + indexFile);
+		codec.readInt(); // min_shift
+		int depth = codec.readInt();
+		codec.readBytes(new byte[codec.readInt()]); // aux
+		long firstDeepestBin = ((1L << (depth * 3)) - 1) / 7;
+		long pseudoBin = ((1L << ((depth + 1) * 3)) - 1) / 7 + 1;
+		int nbRefs = codec.readInt();
+		init(nbRefs);
+		for(int r = 0; r < nbRefs; r++)
+		{
+			int nbBins = codec.readInt();
+			long[] windows = new long[nbBins];
+			int nbWindows = 0;
+			for(int b = 0; b < nbBins; b++)
+			{
+				long bin = codec.readUInt();
+				long loffset = codec.readLong(); // First record overlapping this bin
+				int nbChunks = codec.readInt();
+				for(int c = 0; c < nbChunks; c++)
+				{
+					long begin = codec.readLong();
+					long end = codec.readLong();
+					if(bin == pseudoBin && c == 0) { refStart[r] = begin; refEnd[r] = end; }
+				}
+				if(bin >= firstDeepestBin && bin < pseudoBin) windows[nbWindows++] = loffset;
+			}
+			refWindows[r] = sortWindows(windows, nbWindows, r);
+		}
+	}
+
+	private void init(int nbRefs)
+	{
+		refStart = new long[nbRefs];
+		refEnd = new long[nbRefs];
+		refWindows = new long[nbRefs][];
+		Arrays.fill(refStart, -1);
+	}
+
+	/**
+	 * @return sorted unique offsets, inside the reference range (empty windows are 0)
+	 */
+	private long[] sortWindows(long[] windows, int n, int r)
+	{
+		long[] res = Arrays.copyOf(windows, n);
+		Arrays.sort(res);
+		int nbUnique = 0;
+		for(int i = 0; i < n; i++)
+		{
+			if(res[i] <= refStart[r] || res[i] >= refEnd[r]) continue;
+			if(nbUnique > 0 && res[nbUnique - 1] == res[i]) continue;
+			res[nbUnique++] = res[i];
+		}
+		return Arrays.copyOf(res, nbUnique);
+	}
+}
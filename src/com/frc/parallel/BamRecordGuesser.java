@@ -29,7 +29,6 @@ import java.io.IOException;
 import java.io.PushbackInputStream;
 import java.util.Arrays;
 
-import com.errors.ErrorMessage;
 import com.tools.Utils;
 
 import htsjdk.samtools.BAMRecordCodec;
@@ -65,13 +64,19 @@ public class BamRecordGuesser
 		this.max_flag = Arrays.stream(SAMFlag.values()).mapToInt(F->F.intValue()).sum();
 	}
 	
-	public boolean find(final PushbackInputStream pbis) throws IOException 
+	/**
+	 * Skip bytes until a decodable record is found
+	 * @return number of bytes skipped before the record, or -1 if none was found
+	 */
+	public long find(final PushbackInputStream pbis) throws IOException 
 	{
+		long skipped = 0;
 		for(;;) 
 		{
-			if(canDecode(pbis)) return true;
+			if(canDecode(pbis)) return skipped;
 			final int c=pbis.read(); //skip one byte
-			if(c==-1) return false;
+			if(c==-1) return -1;
+			skipped++;
 		}
 	}
 
@@ -162,7 +167,7 @@ public class BamRecordGuesser
 		}
 		catch(final Throwable err)
 		{
-			new ErrorMessage(err.getMessage());
+			return false; // Not a record (or EOF), keep searching
 		}
 		finally
 		{
@@ -179,7 +184,7 @@ public class BamRecordGuesser
 		}
 		catch(final Throwable err) 
 		{
-			new ErrorMessage(err.getMessage());
+			return false;
 		}
 		finally
 		{
@@ -187,7 +192,6 @@ public class BamRecordGuesser
 			pbis.unread(array);
 			this.consumed.reset();
 		}
-		return false;
 	}
 }
 
@@ -0,0 +1,72 @@
+package com.frc.parallel;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.tools.Utils;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+/**
+ * Reads the raw (still compressed) BGZF blocks of a file, one after the other, without inflating them
+ */
+public class BgzfBlockReader
+{
+	private final InputStream in;
+	private long address;
+
+	/**
+	 * @param in stream positioned at the beginning of a BGZF block
+	 * @param address file offset of this first block
+	 */
+	public BgzfBlockReader(InputStream in, long address)
+	{
+		this.in = in;
+		this.address = address;
+	}
+
+	/**
+	 * @return the next compressed block, or null at EOF
+	 */
+	public CompressedBlock next() throws IOException
+	{
+		int header = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+		byte[] h = new byte[header];
+		int n = in.read(h, 0, header);
+		if(n <= 0) return null; // EOF
+		Utils.readFully(in, h, n, header - n);
+		if((h[0] & 0xff) != 31 || (h[1] & 0xff) != 139 || (h[3] & 4) != 4) throw new IOException("Invalid BGZF block header at offset " + address);
+		int length = getUShort(h, BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET) + 1; // BSIZE is the total block size minus 1
+		if(length < header || length > BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE) throw new IOException("Invalid BGZF block size at offset " + address);
+		byte[] data = new byte[length];
+		System.arraycopy(h, 0, data, 0, header);
+		Utils.readFully(in, data, header, length - header);
+		CompressedBlock block = new CompressedBlock(address, data, length);
+		address += length;
+		return block;
+	}
+
+	static int getUShort(byte[] b, int off)
+	{
+		return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8);
+	}
+
+	static int getInt(byte[] b, int off)
+	{
+		return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) | ((b[off + 2] & 0xff) << 16) | ((b[off + 3] & 0xff) << 24);
+	}
+
+	public static class CompressedBlock
+	{
+		public final long address; // Offset of the block in the file
+		public final byte[] data;
+		public final int length; // Compressed size of the block, header and footer included
+
+		public CompressedBlock(long address, byte[] data, int length)
+		{
+			this.address = address;
+			this.data = data;
+			this.length = length;
+		}
+	}
+}
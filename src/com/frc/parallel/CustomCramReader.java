@@ -0,0 +1,129 @@
+package com.frc.parallel;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.frc.bam.CramRecordInputStream;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileHeader.SortOrder;
+import htsjdk.samtools.cram.build.CramIO;
+import htsjdk.samtools.cram.common.CRAMVersion;
+import htsjdk.samtools.cram.io.CountingInputStream;
+import htsjdk.samtools.cram.structure.Container;
+import htsjdk.samtools.cram.structure.ContainerHeader;
+import htsjdk.samtools.seekablestream.SeekableStream;
+import htsjdk.samtools.util.CloserUtil;
+
+/**
+ * Same as CustomSamReader, for CRAM files: the records are read as a stream of BAM records (see CramRecordInputStream)
+ * Virtual offsets are container byte offset << 16 | slice index. Slices are decoded independently, so ranges starting on a slice never need to be validated
+ */
+public class CustomCramReader implements Closeable
+{
+	private String path;
+	private SAMFileHeader samFileHeader;
+	private SeekableStream seekableStream;
+	private CRAMVersion version;
+	private long firstContainerOffset; // Just after the header
+	public SortOrder sortOrder;
+
+	public CustomCramReader(final String path) throws IOException
+	{
+		this.path = path;
+		this.seekableStream = MappedSeekableStream.open(path);
+		CountingInputStream in = new CountingInputStream(new BufferedInputStream(this.seekableStream));
+		this.version = CramIO.readCramHeader(in).getCRAMVersion();
+		this.samFileHeader = Container.readSAMFileHeaderContainer(this.version, in, this.path);
+		this.firstContainerOffset = in.getCount();
+		this.sortOrder = this.samFileHeader.getSortOrder();
+	}
+
+	/**
+	 * @return true if the file starts with the CRAM magic number
+	 */
+	public static boolean isCram(final File file) throws IOException
+	{
+		if(!file.isFile()) return false;
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			byte[] magic = new byte[4];
+			return in.read(magic) == 4 && magic[0] == 'C' && magic[1] == 'R' && magic[2] == 'A' && magic[3] == 'M';
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	public SAMFileHeader getFileHeader()
+	{
+		return samFileHeader;
+	}
+
+	/**
+	 *  Split the file in (at most) nbSplits ranges starting on slices, of ~size/nbSplits bytes. Only the container headers are read (slice offsets are their landmarks)
+	 */
+	public long[] computeSplits(final int nbSplits) throws IOException
+	{
+		long size = this.seekableStream.length();
+		long target = size / nbSplits;
+		ArrayList<Long> splits = new ArrayList<Long>();
+		long last = 0; // Byte offset of the last split
+		long offset = this.firstContainerOffset;
+		while(offset < size)
+		{
+			this.seekableStream.seek(offset);
+			CountingInputStream in = new CountingInputStream(new BufferedInputStream(this.seekableStream, 4096));
+			ContainerHeader container = new ContainerHeader(this.version, in);
+			if(container.isEOF()) break;
+			long blocks = offset + in.getCount(); // Landmarks are relative to the end of the container header
+			List<Integer> landmarks = container.getLandmarks();
+			for(int s = 0; s < landmarks.size(); s++)
+			{
+				long sliceOffset = blocks + landmarks.get(s);
+				if(splits.isEmpty() || sliceOffset - last >= target)
+				{
+					splits.add((offset << 16) | s);
+					last = sliceOffset;
+				}
+			}
+			offset = blocks + container.getContainerBlocksByteSize();
+		}
+		if(splits.isEmpty()) splits.add(this.firstContainerOffset << 16); // No record
+		long[] res = new long[splits.size()];
+		for(int i = 0; i < res.length; i++) res[i] = splits.get(i);
+		return res;
+	}
+
+	/**
+	 *  open a stream of (BAM encoded) records at the first record of the file
+	 */
+	public InputStream open() throws IOException
+	{
+		return openVirtualRange(this.firstContainerOffset << 16);
+	}
+
+	/**
+	 *  open a stream of (BAM encoded) records at the given virtual offset. The returned stream is LocationAware, i.e. knows the virtual offset of the next record
+	 */
+	public InputStream openVirtualRange(final long start_vo) throws IOException
+	{
+		long offset = start_vo >>> 16;
+		this.seekableStream.seek(offset);
+		return new CramRecordInputStream(this.seekableStream, offset, (int)(start_vo & 0xffff), this.version, this.samFileHeader);
+	}
+
+	@Override
+	public void close()
+	{
+		CloserUtil.close(this.seekableStream);
+	}
+}
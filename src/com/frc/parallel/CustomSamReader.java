@@ -26,22 +26,24 @@ SOFTWARE.
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PushbackInputStream;
-import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
 
 import com.errors.ErrorMessage;
 
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMFileHeader.SortOrder;
-import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SamInputResource;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.ValidationStringency;
 import htsjdk.samtools.seekablestream.SeekableStream;
-import htsjdk.samtools.seekablestream.SeekableStreamFactory;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.BlockCompressedFilePointerUtil;
 import htsjdk.samtools.util.BlockCompressedInputStream;
-import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
 import htsjdk.samtools.util.CloserUtil;
 
 /**
@@ -111,12 +113,13 @@ public class CustomSamReader implements Closeable
 	private SeekableStream seekableStream;
 	private SamReader samReader ;
 	private BgzfBlockGuesser bgzfBlockGuesser; // class finding the next BGZF block
+	private PipelinedBgzfInputStream pipelinedStream = null;
 	public SortOrder sortOrder;
 	
 	public CustomSamReader(final String path) throws IOException 
 	{
 		this.path = path;
-		this.seekableStream = SeekableStreamFactory.getInstance().getStreamFor(Paths.get(path).toString());
+		this.seekableStream = MappedSeekableStream.open(path);
 		this.bgzfBlockGuesser= new BgzfBlockGuesser(this.seekableStream, this.path.toString());
 		this.samReader = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(SamInputResource.of(this.seekableStream)); 
 		this.samFileHeader = this.samReader.getFileHeader();
@@ -129,27 +132,141 @@ public class CustomSamReader implements Closeable
 	}
 
 	/**
-	 *  create a SAMRecord Iterator at the given byte offset
+	 *  @return the virtual offset of the first record of the file (i.e. just after the BAM header)
 	 */
-	public CloseableIterator<SAMRecord> queryAtOffset(final long start_offset) throws IOException 
+	public long getFirstRecordVirtualOffset() throws IOException 
 	{
-		if(start_offset >= this.seekableStream.length()) new ErrorMessage("Cannot create a reading thread with this offset (go beyond last file byte).");
-		
-		BgzfBlockGuesser.BgzfBlock bgzfBlock = this.bgzfBlockGuesser.guessNextBGZFPos(start_offset, seekableStream.length());
-		if(bgzfBlock==null) new ErrorMessage("No bgz block found at "+start_offset);
+		BlockCompressedInputStream bcis = new BlockCompressedInputStream(this.seekableStream);
+		bcis.seek(0);
+		BinaryCodec codec = new BinaryCodec(bcis);
+		byte[] magic = new byte[4];
+		codec.readBytes(magic);
+		if(magic[0] != 'B' || magic[1] != 'A' || magic[2] != 'M' || magic[3] != 1) new ErrorMessage("Invalid BAM file header: " + this.path);
+		codec.readBytes(new byte[codec.readInt()]); // header text
+		int nbRefs = codec.readInt();
+		for(int i = 0; i < nbRefs; i++)
+		{
+			codec.readBytes(new byte[codec.readInt()]); // ref name
+			codec.readInt(); // ref length
+		}
+		return bcis.getFilePointer();
+	}
+	
+	/**
+	 *  Find the first record starting after the given byte offset
+	 *  @return its virtual offset, or -1 if no record was found
+	 */
+	public long guessRecordVirtualOffset(final long byte_offset) throws IOException 
+	{
+		if(byte_offset >= this.seekableStream.length()) return -1;
 		
-		this.seekableStream.seek(bgzfBlock.pos);
+		BgzfBlockGuesser.BgzfBlock bgzfBlock = this.bgzfBlockGuesser.guessNextBGZFPos(byte_offset, this.seekableStream.length());
+		if(bgzfBlock == null) return -1;
+		long blockVirtualOffset = BlockCompressedFilePointerUtil.makeFilePointer(bgzfBlock.pos);
 
 		BlockCompressedInputStream bcis = new BlockCompressedInputStream(this.seekableStream);
+		bcis.seek(blockVirtualOffset);
 		PushbackInputStream bpi = new PushbackInputStream(bcis, BamRecordGuesser.BUFFER_SIZE);
 		BamRecordGuesser bamRecordGuesser = new BamRecordGuesser(this.samFileHeader);
-		if(bamRecordGuesser.find(bpi)) return new MySamRecordIterator(this.samFileHeader, bpi, this.path.toString());
-		return null;
+		long skipped = bamRecordGuesser.find(bpi);
+		if(skipped == -1) return -1;
+		
+		// Skipped bytes can overlap several blocks, so let the stream compute the virtual offset
+		bcis.seek(blockVirtualOffset);
+		byte[] buffer = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+		while(skipped > 0) skipped -= bcis.read(buffer, 0, (int)Math.min(buffer.length, skipped));
+		return bcis.getFilePointer();
+	}
+	
+	/**
+	 *  Split the file in (at most) nbSplits record-exact ranges. Boundaries are virtual offsets of the first record of each range (half-open ranges).
+	 *  Guessed boundaries still need to be validated by the caller (the range before should stop exactly on it).
+	 */
+	public long[] computeSplits(final int nbSplits) throws IOException 
+	{
+		long size = this.seekableStream.length();
+		ArrayList<Long> splits = new ArrayList<Long>();
+		splits.add(getFirstRecordVirtualOffset());
+		for(int i = 1; i < nbSplits; i++)
+		{
+			long vo = guessRecordVirtualOffset((size / nbSplits) * i);
+			if(vo > splits.get(splits.size() - 1)) splits.add(vo); // Skip duplicated or not found boundaries
+		}
+		long[] res = new long[splits.size()];
+		for(int i = 0; i < res.length; i++) res[i] = splits.get(i);
+		return res;
+	}
+
+	/**
+	 *  Split the file in record-exact ranges using its index (coordinate-sorted BAM): ranges start on reference sequences, and large references are split in genomic chunks of ~size/nbSplits bytes.
+	 *  Small references are grouped with the following ones. These boundaries do not need to be validated.
+	 */
+	public long[] computeIndexSplits(final BamIndexReader index, final int nbSplits) throws IOException
+	{
+		long target = Math.max(this.seekableStream.length() / nbSplits, BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE);
+		ArrayList<Long> splits = new ArrayList<Long>();
+		long last = getFirstRecordVirtualOffset();
+		splits.add(last);
+		for(int r = 0; r < index.refStart.length; r++)
+		{
+			if(index.refStart[r] == -1) continue; // No record on this reference
+			if(index.refStart[r] > last && size(last, index.refStart[r]) >= target / 4) // New reference: start a new range, unless the current one is still small
+			{
+				last = index.refStart[r];
+				splits.add(last);
+			}
+			for(long vo:index.refWindows[r])
+			{
+				if(vo > last && size(last, vo) >= target) // Genomic chunk inside the reference
+				{
+					last = vo;
+					splits.add(last);
+				}
+			}
+		}
+		long[] res = new long[splits.size()];
+		for(int i = 0; i < res.length; i++) res[i] = splits.get(i);
+		return res;
+	}
+
+	/**
+	 *  @return compressed size (in bytes) between two virtual offsets
+	 */
+	private static long size(final long start_vo, final long end_vo)
+	{
+		return BlockCompressedFilePointerUtil.getBlockAddress(end_vo) - BlockCompressedFilePointerUtil.getBlockAddress(start_vo);
+	}
+	
+	/**
+	 *  open an (inflated) stream at the first record of the file
+	 *  @param inflaterPool if not null, blocks are read in a pipeline and inflated by this pool of threads
+	 */
+	public InputStream open(final ExecutorService inflaterPool) throws IOException 
+	{
+		return openVirtualRange(getFirstRecordVirtualOffset(), Long.MAX_VALUE, inflaterPool);
+	}
+	
+	/**
+	 *  open an (inflated) stream at the given virtual offset. The returned stream is LocationAware, i.e. knows the virtual offset of the next record
+	 *  @param end_vo end of the range that will be read (the stream does not stop there, but blocks are not read in advance after it)
+	 *  @param inflaterPool if not null, blocks are read in a pipeline and inflated by this pool of threads
+	 */
+	public InputStream openVirtualRange(final long start_vo, final long end_vo, final ExecutorService inflaterPool) throws IOException 
+	{
+		if(inflaterPool != null)
+		{
+			this.pipelinedStream = new PipelinedBgzfInputStream(this.seekableStream, start_vo, end_vo, inflaterPool);
+			return this.pipelinedStream;
+		}
+		BlockCompressedInputStream bcis = new BlockCompressedInputStream(this.seekableStream);
+		bcis.seek(start_vo);
+		return bcis;
 	}
 	
 	@Override
 	public void close() 
 	{
+		if(this.pipelinedStream != null) this.pipelinedStream.close(); // Stops the reader thread
 		CloserUtil.close(this.seekableStream);
 		this.bgzfBlockGuesser.close();
 		try
@@ -0,0 +1,282 @@
+package com.frc.parallel;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+
+/**
+ * Reads a text file (plain, gzip or BGZF compressed) as chunks of whole lines, parsed in parallel. The parsed chunks are merged in file order, so that the result is the same as parsing the file line by line
+ * Plain files are memory-mapped and parsed in place. BGZF files are inflated by the same threads (see PipelinedBgzfInputStream), gzip files by the calling thread
+ */
+public class LineChunkReader
+{
+	public static final int CHUNK_SIZE = 8 * 1024 * 1024;
+	private static final int MAX_PARSING = 16; // Max number of chunks parsed in advance of the merger (~128Mb)
+
+	/**
+	 * Parses a chunk, in any thread
+	 */
+	public interface Parser<T>
+	{
+		/**
+		 * @param chunk whole lines between its position and its limit (the last one may have no '\n')
+		 */
+		T parse(ByteBuffer chunk);
+	}
+
+	/**
+	 * Merges the parsed chunks, in file order, in the calling thread
+	 */
+	public interface Merger<T>
+	{
+		void merge(T parsed);
+	}
+
+	/**
+	 * Parse all the lines of the file, with nbThreads threads
+	 */
+	public static <T> void read(File file, int nbThreads, Parser<T> parser, Merger<T> merger) throws IOException
+	{
+		ExecutorService pool = (nbThreads > 1)?Executors.newFixedThreadPool(nbThreads):null;
+		ArrayDeque<Future<T>> parsing = new ArrayDeque<>(); // Chunks being parsed, in file order
+		try
+		{
+			if(isGzip(file)) readCompressed(file, pool, parser, merger, parsing);
+			else readMapped(file, pool, parser, merger, parsing);
+			while(!parsing.isEmpty()) merger.merge(get(parsing.poll()));
+		}
+		finally
+		{
+			if(pool != null)
+			{
+				pool.shutdownNow();
+				PipelinedBgzfInputStream.releaseInflaters();
+			}
+		}
+	}
+
+	/**
+	 * Parse the chunk in the pool, or right now if there is none. Merge the parsed chunks when enough are waiting (bounds the memory)
+	 */
+	private static <T> void submit(ByteBuffer chunk, ExecutorService pool, Parser<T> parser, Merger<T> merger, ArrayDeque<Future<T>> parsing) throws IOException
+	{
+		if(pool == null)
+		{
+			merger.merge(parser.parse(chunk));
+			return;
+		}
+		parsing.add(pool.submit(() -> parser.parse(chunk)));
+		while(parsing.size() > MAX_PARSING) merger.merge(get(parsing.poll()));
+	}
+
+	private static <T> T get(Future<T> parsed) throws IOException
+	{
+		try
+		{
+			return parsed.get();
+		}
+		catch(InterruptedException ie)
+		{
+			throw new IOException(ie.getMessage());
+		}
+		catch(ExecutionException ee)
+		{
+			if(ee.getCause() instanceof RuntimeException) throw (RuntimeException)ee.getCause(); // e.g. NumberFormatException, as if it was parsed by this thread
+			throw new IOException(ee.getCause());
+		}
+	}
+
+	/**
+	 * Plain file: chunks are mapped regions ending on a '\n'
+	 */
+	private static <T> void readMapped(File file, ExecutorService pool, Parser<T> parser, Merger<T> merger, ArrayDeque<Future<T>> parsing) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			long length = channel.size();
+			long pos = 0;
+			while(pos < length)
+			{
+				int size = (int)Math.min(CHUNK_SIZE, length - pos);
+				ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+				int end = lastLineEnd(chunk, size);
+				while(end == 0 && pos + size < length) // Line longer than the chunk
+				{
+					size = (int)Math.min(2L * size, length - pos);
+					chunk = channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+					end = lastLineEnd(chunk, size);
+				}
+				if(end == 0 || pos + size == length) end = size; // Last line, without '\n'
+				chunk.limit(end);
+				submit(chunk, pool, parser, merger, parsing);
+				pos += end;
+			}
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Compressed file: chunks are copies of the inflated bytes, ending on a '\n'
+	 */
+	private static <T> void readCompressed(File file, ExecutorService pool, Parser<T> parser, Merger<T> merger, ArrayDeque<Future<T>> parsing) throws IOException
+	{
+		InputStream in;
+		if(pool != null && isBgzf(file)) in = new PipelinedBgzfInputStream(new FileInputStream(file), 0, pool);
+		else in = new GZIPInputStream(new FileInputStream(file), 1 << 16); // Also reads concatenated members (e.g. BGZF blocks)
+		try
+		{
+			byte[] buffer = new byte[CHUNK_SIZE];
+			int size = 0; // Bytes in buffer
+			boolean eof = false;
+			while(!eof)
+			{
+				int n = in.read(buffer, size, buffer.length - size);
+				if(n < 0) eof = true;
+				else size += n;
+				if(size < buffer.length && !eof) continue;
+
+				int end = eof?size:lastLineEnd(ByteBuffer.wrap(buffer), size);
+				if(end == 0 && !eof) // Line longer than the buffer
+				{
+					byte[] larger = new byte[buffer.length * 2];
+					System.arraycopy(buffer, 0, larger, 0, size);
+					buffer = larger;
+					continue;
+				}
+				if(end != 0) submit(ByteBuffer.wrap(buffer, 0, end), pool, parser, merger, parsing);
+				if(eof) break;
+				byte[] next = new byte[Math.max(CHUNK_SIZE, size - end)]; // The submitted buffer belongs to its parser now
+				System.arraycopy(buffer, end, next, 0, size - end);
+				buffer = next;
+				size -= end;
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the position after the last '\n' of the first size bytes of b, 0 if there is none
+	 */
+	private static int lastLineEnd(ByteBuffer b, int size)
+	{
+		for(int i = size - 1; i >= 0; i--) if(b.get(i) == '\n') return i + 1;
+		return 0;
+	}
+
+	private static boolean isGzip(File file) throws IOException
+	{
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			return in.read() == 0x1f && in.read() == 0x8b;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private static boolean isBgzf(File file) throws IOException
+	{
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try
+		{
+			return BlockCompressedInputStream.isValidFile(in);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the position of the next tab (or of the end of the line, or limit) at or after from
+	 */
+	public static int nextTab(ByteBuffer b, int from, int limit)
+	{
+		while(from < limit)
+		{
+			byte c = b.get(from);
+			if(c == '\t' || c == '\n') return from;
+			from++;
+		}
+		return limit;
+	}
+
+	/**
+	 * @return the position of the '\n' ending the line starting at from (or limit)
+	 */
+	public static int lineEnd(ByteBuffer b, int from, int limit)
+	{
+		while(from < limit && b.get(from) != '\n') from++;
+		return from;
+	}
+
+	/**
+	 * @return end, or end - 1 if the line [from, end) ends with '\r' (Windows line ending)
+	 */
+	public static int trimCR(ByteBuffer b, int from, int end)
+	{
+		return (end > from && b.get(end - 1) == '\r')?end - 1:end;
+	}
+
+	/**
+	 * @return true if the bytes [from, to) are s (ASCII)
+	 */
+	public static boolean equals(ByteBuffer b, int from, int to, String s)
+	{
+		if(to - from != s.length()) return false;
+		for(int i = 0; i < s.length(); i++) if(b.get(from + i) != s.charAt(i)) return false;
+		return true;
+	}
+
+	/**
+	 * @return the bytes [from, to), reusing previous if they are the same (e.g. the chromosome of the previous line)
+	 */
+	public static String toString(ByteBuffer b, int from, int to, String previous)
+	{
+		if(previous != null && equals(b, from, to, previous)) return previous;
+		byte[] s = new byte[to - from];
+		for(int i = 0; i < s.length; i++) s[i] = b.get(from + i);
+		return new String(s, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Same as Long.parseLong() on the bytes [from, to)
+	 */
+	public static long parseLong(ByteBuffer b, int from, int to)
+	{
+		if(from == to) throw new NumberFormatException("For input string: \"\"");
+		if(to - from > 18) return Long.parseLong(toString(b, from, to, null)); // May overflow
+		long res = 0;
+		for(int i = from; i < to; i++)
+		{
+			int d = b.get(i) - '0';
+			if(d < 0 || d > 9) return Long.parseLong(toString(b, from, to, null)); // Sign, or error
+			res = res * 10 + d;
+		}
+		return res;
+	}
+}
@@ -0,0 +1,184 @@
+package com.frc.parallel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+import htsjdk.samtools.seekablestream.SeekableStream;
+import htsjdk.samtools.seekablestream.SeekableStreamFactory;
+
+/**
+ * SeekableStream reading a memory-mapped file: seeks and small reads (e.g. BgzfBlockGuesser, BGZF block headers) are copies from the page cache instead of system calls
+ * The file is mapped once, in regions of REGION_SIZE bytes, and the mapping is shared by all the streams opened on it (i.e. by all jobs), each stream having its own position
+ * The mapping is released when the last stream of the file is closed
+ */
+public class MappedSeekableStream extends SeekableStream
+{
+	private static final int REGION_SIZE = 1 << 30; // A MappedByteBuffer is indexed by an int
+	private static final HashMap<String, MappedFile> mappedFiles = new HashMap<String, MappedFile>(); // Currently opened files
+
+	private final MappedFile file;
+	private final ByteBuffer[] views; // Own views of the regions (positions are not shared)
+	private long position = 0;
+	private boolean closed = false;
+
+	/**
+	 * Regions of a mapped file, and number of streams using it
+	 */
+	private static class MappedFile
+	{
+		final String path;
+		final long length;
+		final MappedByteBuffer[] regions;
+		int nbStreams = 0;
+
+		MappedFile(final String path) throws IOException
+		{
+			this.path = path;
+			RandomAccessFile raf = new RandomAccessFile(path, "r");
+			try
+			{
+				FileChannel channel = raf.getChannel();
+				this.length = channel.size();
+				this.regions = new MappedByteBuffer[(int)((this.length + REGION_SIZE - 1) / REGION_SIZE)];
+				for(int i = 0; i < this.regions.length; i++)
+				{
+					long start = (long)i * REGION_SIZE;
+					this.regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, this.length - start)); // Still valid when the channel is closed
+				}
+			}
+			finally
+			{
+				raf.close();
+			}
+		}
+	}
+
+	private MappedSeekableStream(final MappedFile file)
+	{
+		this.file = file;
+		this.views = new ByteBuffer[file.regions.length];
+	}
+
+	/**
+	 * @return a stream on the mapped file, or the default stream of htsjdk if it cannot be mapped (e.g. not a regular file, or no more address space)
+	 */
+	public static SeekableStream open(final String path) throws IOException
+	{
+		String key = new File(path).getCanonicalPath();
+		synchronized(mappedFiles)
+		{
+			MappedFile file = mappedFiles.get(key);
+			if(file == null && new File(key).isFile())
+			{
+				try
+				{
+					file = new MappedFile(key);
+					mappedFiles.put(key, file);
+				}
+				catch(IOException | OutOfMemoryError e) // Mapping failed
+				{
+					file = null;
+				}
+			}
+			if(file == null) return SeekableStreamFactory.getInstance().getStreamFor(path);
+			file.nbStreams++;
+			return new MappedSeekableStream(file);
+		}
+	}
+
+	@Override
+	public long length()
+	{
+		return file.length;
+	}
+
+	@Override
+	public long position()
+	{
+		return position;
+	}
+
+	@Override
+	public void seek(final long position) throws IOException
+	{
+		if(closed) throw new IOException("Stream is closed: " + file.path);
+		this.position = position;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		if(closed) throw new IOException("Stream is closed: " + file.path);
+		if(position >= file.length) return -1;
+		ByteBuffer view = view((int)(position / REGION_SIZE));
+		return view.get((int)(position++ % REGION_SIZE)) & 0xff;
+	}
+
+	@Override
+	public int read(final byte[] buffer, final int offset, final int length) throws IOException
+	{
+		if(closed) throw new IOException("Stream is closed: " + file.path);
+		if(length == 0) return 0;
+		if(position >= file.length) return -1;
+		int n = 0;
+		while(n < length && position < file.length) // A read can overlap two regions
+		{
+			ByteBuffer view = view((int)(position / REGION_SIZE));
+			int start = (int)(position % REGION_SIZE);
+			int count = Math.min(length - n, view.limit() - start);
+			view.position(start);
+			view.get(buffer, offset + n, count);
+			n += count;
+			position += count;
+		}
+		return n;
+	}
+
+	@Override
+	public long skip(final long n) throws IOException
+	{
+		long skipped = Math.max(0, Math.min(n, file.length - position));
+		position += skipped;
+		return skipped;
+	}
+
+	@Override
+	public int available()
+	{
+		return (int)Math.min(Integer.MAX_VALUE, Math.max(0, file.length - position));
+	}
+
+	@Override
+	public boolean eof()
+	{
+		return position >= file.length;
+	}
+
+	@Override
+	public String getSource()
+	{
+		return file.path;
+	}
+
+	@Override
+	public void close()
+	{
+		if(closed) return;
+		closed = true;
+		synchronized(mappedFiles)
+		{
+			if(--file.nbStreams == 0) mappedFiles.remove(file.path); // Unmapped when garbage collected
+		}
+	}
+
+	private ByteBuffer view(final int region)
+	{
+		if(views[region] == null) views[region] = file.regions[region].duplicate();
+		return views[region];
+	}
+}
@@ -0,0 +1,282 @@
+package com.frc.parallel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.frc.parallel.BgzfBlockReader.CompressedBlock;
+
+import htsjdk.samtools.seekablestream.SeekableStream;
+import htsjdk.samtools.util.BlockCompressedFilePointerUtil;
+import htsjdk.samtools.util.LocationAware;
+
+/**
+ * BGZF input stream reading a file as a pipeline:
+ * - a reader thread reads the compressed blocks from disk
+ * - a (shared) pool of threads inflates them
+ * - the consumer of this stream (decoding/counting) reads the inflated blocks in order
+ * Stages are joined by a bounded queue, so the reader waits when the consumer is late (backpressure)
+ * When reading a range of the file, the reader stops at the block of its end: the few blocks a record overlapping the end may need are then read by the consumer itself
+ */
+public class PipelinedBgzfInputStream extends InputStream implements LocationAware
+{
+	public static final int QUEUE_SIZE = 64; // Max number of blocks read in advance (~4Mb)
+	private static final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>(); // Pool of Inflaters, reused across blocks and threads
+	private static final InflatedBlock LIMIT = new InflatedBlock(-1, 0, new byte[0]); // Queued after the block of the end of the range
+
+	private final BlockingQueue<Future<InflatedBlock>> queue = new ArrayBlockingQueue<Future<InflatedBlock>>(QUEUE_SIZE);
+	private final Thread readerThread;
+	private final BgzfBlockReader reader; // Used by the consumer once the reader thread reached the end of the range
+	private volatile boolean closed = false;
+	private volatile IOException error = null; // Set by the reader thread when it fails (read once the blocks queued before are consumed)
+
+	private final long startVirtualOffset;
+	private InflatedBlock current = null;
+	private int offset = 0;
+	private boolean eof = false;
+	private boolean pastLimit = false; // The next blocks are read and inflated by the consumer
+
+	/**
+	 * @param in stream to read the compressed blocks from (should not be used by anyone else)
+	 * @param startVirtualOffset virtual offset to start reading at
+	 * @param endVirtualOffset end of the range to read: blocks are read in advance only until its block
+	 * @param inflaterPool threads inflating the blocks
+	 */
+	public PipelinedBgzfInputStream(final SeekableStream in, final long startVirtualOffset, final long endVirtualOffset, final ExecutorService inflaterPool) throws IOException
+	{
+		this(seek(in, startVirtualOffset), startVirtualOffset, endVirtualOffset, inflaterPool);
+	}
+
+	/**
+	 * @param in stream positioned at the block of startVirtualOffset (can be a pipe, for reading it from its beginning)
+	 * @param startVirtualOffset virtual offset to start reading at
+	 * @param inflaterPool threads inflating the blocks
+	 */
+	public PipelinedBgzfInputStream(final InputStream in, final long startVirtualOffset, final ExecutorService inflaterPool)
+	{
+		this(in, startVirtualOffset, Long.MAX_VALUE, inflaterPool);
+	}
+
+	private PipelinedBgzfInputStream(final InputStream in, final long startVirtualOffset, final long endVirtualOffset, final ExecutorService inflaterPool)
+	{
+		this.startVirtualOffset = startVirtualOffset;
+		this.reader = new BgzfBlockReader(in, BlockCompressedFilePointerUtil.getBlockAddress(startVirtualOffset));
+		final long endAddress = BlockCompressedFilePointerUtil.getBlockAddress(endVirtualOffset);
+		this.readerThread = new Thread(() -> readBlocks(endAddress, inflaterPool));
+		this.readerThread.setDaemon(true);
+		this.readerThread.start();
+	}
+
+	private static InputStream seek(final SeekableStream in, final long virtualOffset) throws IOException
+	{
+		in.seek(BlockCompressedFilePointerUtil.getBlockAddress(virtualOffset));
+		return in;
+	}
+
+	/**
+	 * Reader stage: read compressed blocks and hand them to the inflater pool, in order
+	 * @param endAddress address of the last block to read
+	 */
+	private void readBlocks(final long endAddress, final ExecutorService inflaterPool)
+	{
+		try
+		{
+			while(!closed)
+			{
+				final CompressedBlock block = reader.next();
+				if(block == null) // EOF
+				{
+					queue.put(CompletableFuture.completedFuture(null));
+					return;
+				}
+				queue.put(inflaterPool.submit(() -> inflate(block)));
+				if(block.address >= endAddress)
+				{
+					queue.put(CompletableFuture.completedFuture(LIMIT));
+					return;
+				}
+			}
+		}
+		catch(InterruptedException ie)
+		{
+			// Stream was closed
+		}
+		catch(final IOException ioe)
+		{
+			error = ioe; // Not queued: the queue may be full
+		}
+		catch(final RuntimeException re) // e.g. the inflater pool was shut down
+		{
+			error = new IOException(re);
+		}
+	}
+
+	/**
+	 * Inflater stage
+	 */
+	private static InflatedBlock inflate(final CompressedBlock block) throws IOException
+	{
+		final byte[] b = block.data;
+		final int xlen = BgzfBlockReader.getUShort(b, 10);
+		final int dataStart = 12 + xlen;
+		final int uncompressedSize = BgzfBlockReader.getInt(b, block.length - 4); // ISIZE
+		final byte[] uncompressed = new byte[uncompressedSize];
+		Inflater inflater = inflaters.poll();
+		if(inflater == null) inflater = new Inflater(true); // nowrap: raw deflate data
+		inflater.setInput(b, dataStart, block.length - dataStart - 8); // Without the CRC32/ISIZE footer
+		try
+		{
+			int n = 0;
+			while(n < uncompressedSize && !inflater.finished()) n += inflater.inflate(uncompressed, n, uncompressedSize - n);
+			if(n != uncompressedSize) throw new IOException("Did not inflate expected amount of bytes in BGZF block at offset " + block.address);
+		}
+		catch(DataFormatException dfe)
+		{
+			throw new IOException("Corrupted BGZF block at offset " + block.address + ": " + dfe.getMessage());
+		}
+		finally
+		{
+			inflater.reset();
+			inflaters.offer(inflater);
+		}
+		return new InflatedBlock(block.address, block.length, uncompressed);
+	}
+
+	/**
+	 * Make sure there is something to read in the current block
+	 * @return false at EOF
+	 */
+	private boolean ensureBlock() throws IOException
+	{
+		while(current == null || offset >= current.data.length)
+		{
+			if(eof) return false;
+			final boolean first = (current == null);
+			InflatedBlock next;
+			try
+			{
+				if(pastLimit) next = readBlock();
+				else
+				{
+					Future<InflatedBlock> f;
+					while((f = queue.poll(100, TimeUnit.MILLISECONDS)) == null)
+					{
+						if(error != null && queue.isEmpty()) throw error; // The reader thread failed after the queued blocks
+					}
+					next = f.get();
+					if(next == LIMIT) // The reader thread is done, a record overlaps the end of the range
+					{
+						pastLimit = true;
+						next = readBlock();
+					}
+				}
+			}
+			catch(InterruptedException ie)
+			{
+				throw new IOException(ie.getMessage());
+			}
+			catch(ExecutionException ee)
+			{
+				throw new IOException(ee.getCause().getMessage());
+			}
+			if(next == null) { eof = true; return false; }
+			current = next;
+			offset = first?BlockCompressedFilePointerUtil.getBlockOffset(startVirtualOffset):0;
+		}
+		return true;
+	}
+
+	/**
+	 * Read and inflate the next block in this thread (after the end of the range)
+	 * @return null at EOF
+	 */
+	private InflatedBlock readBlock() throws IOException
+	{
+		final CompressedBlock block = reader.next();
+		return (block == null)?null:inflate(block);
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		if(!ensureBlock()) return -1;
+		return current.data[offset++] & 0xff;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len) throws IOException
+	{
+		if(len == 0) return 0;
+		if(!ensureBlock()) return -1;
+		final int n = Math.min(len, current.data.length - offset);
+		System.arraycopy(current.data, offset, b, off, n);
+		offset += n;
+		return n;
+	}
+
+	@Override
+	public long skip(final long n) throws IOException
+	{
+		if(n <= 0 || !ensureBlock()) return 0;
+		final int skipped = (int)Math.min(n, current.data.length - offset);
+		offset += skipped; // No copy
+		return skipped;
+	}
+
+	/**
+	 * @return the virtual offset of the next byte to be read (same convention than BlockCompressedInputStream)
+	 */
+	public long getFilePointer()
+	{
+		if(current == null) return startVirtualOffset;
+		if(offset > 0 && offset == current.data.length) return BlockCompressedFilePointerUtil.makeFilePointer(current.address + current.compressedLength, 0);
+		return BlockCompressedFilePointerUtil.makeFilePointer(current.address, offset);
+	}
+
+	@Override
+	public long getPosition()
+	{
+		return getFilePointer();
+	}
+
+	/**
+	 * Release the native memory of the pooled Inflaters, once no stream is used anymore
+	 */
+	public static void releaseInflaters()
+	{
+		Inflater inflater;
+		while((inflater = inflaters.poll()) != null) inflater.end();
+	}
+
+	@Override
+	public void close()
+	{
+		closed = true;
+		readerThread.interrupt();
+		for(Future<InflatedBlock> f:queue) f.cancel(false);
+		queue.clear();
+	}
+
+	private static class InflatedBlock
+	{
+		final long address;
+		final int compressedLength;
+		final byte[] data;
+
+		InflatedBlock(long address, int compressedLength, byte[] data)
+		{
+			this.address = address;
+			this.compressedLength = compressedLength;
+			this.data = data;
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package com.frc.parallel;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.errors.WarningMessage;
+import com.tools.Utils;
+
+import gnu.trove.list.array.TCharArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import htsjdk.samtools.SBIIndex;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.BlockCompressedFilePointerUtil;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.FileExtensions;
+import htsjdk.samtools.util.LocationAware;
+
+/**
+ * Splitting index of a BAM file (file.bam.sbi, same format as htsjdk/GATK): the virtual offset of about every GRANULARITY-th record, then of the end of the records
+ * All these offsets are record starts, so a BAM file can be split in exact and balanced ranges, whatever its sort order, without guessing boundaries
+ * It is written by --split-index, or as a side effect of the first run reading the BAM file (see Recorder)
+ */
+public class SplitIndex
+{
+	public static final long GRANULARITY = 4096;
+
+	public final File indexFile;
+	private final long[] offsets;
+
+	private SplitIndex(File indexFile, long[] offsets)
+	{
+		this.indexFile = indexFile;
+		this.offsets = offsets;
+	}
+
+	/**
+	 * @return the sidecar file of this BAM file
+	 */
+	public static File getFile(File bamFile)
+	{
+		return new File(bamFile.getPath() + FileExtensions.SBI);
+	}
+
+	/**
+	 * @return the split index of this BAM file, or null if there is none (or if it is older than the BAM file, or was built for another file)
+	 */
+	public static SplitIndex open(File bamFile) throws IOException
+	{
+		File f = getFile(bamFile);
+		if(!f.isFile() || f.lastModified() < bamFile.lastModified()) return null;
+		try
+		{
+			SBIIndex sbi = SBIIndex.load(f.toPath());
+			if(sbi.dataFileLength() != bamFile.length() || sbi.getVirtualOffsets().length == 0) return null;
+			return new SplitIndex(f, sbi.getVirtualOffsets());
+		}
+		catch(RuntimeException e) // Invalid file
+		{
+			new WarningMessage("Ignoring invalid split index " + f + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 *  Split the file in (at most) nbSplits record-exact ranges of ~size/nbSplits compressed bytes. Boundaries are virtual offsets of the first record of each range
+	 */
+	public long[] computeSplits(final int nbSplits, final long fileLength)
+	{
+		long target = Math.max(fileLength / nbSplits, BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE);
+		ArrayList<Long> splits = new ArrayList<Long>();
+		long last = offsets[0];
+		splits.add(last);
+		for(int i = 1; i < offsets.length - 1; i++) // The last offset is the end of the records
+		{
+			if(BlockCompressedFilePointerUtil.getBlockAddress(offsets[i]) - BlockCompressedFilePointerUtil.getBlockAddress(last) >= target)
+			{
+				last = offsets[i];
+				splits.add(last);
+			}
+		}
+		long[] res = new long[splits.size()];
+		for(int i = 0; i < res.length; i++) res[i] = splits.get(i);
+		return res;
+	}
+
+	/**
+	 * Write the split index of a BAM file, reading only the sizes of its records (--split-index)
+	 * @param nbThreads threads inflating the BGZF blocks
+	 */
+	public static void build(File bamFile, int nbThreads) throws IOException
+	{
+		ExecutorService inflaterPool = (nbThreads > 1)?Executors.newFixedThreadPool(nbThreads):null;
+		CustomSamReader reader = new CustomSamReader(bamFile.getAbsolutePath());
+		try
+		{
+			InputStream in = reader.open(inflaterPool);
+			LocationAware location = (LocationAware)in;
+			Recorder recorder = new Recorder();
+			byte[] b = new byte[4];
+			long vo = location.getPosition();
+			int first;
+			while((first = in.read()) != -1)
+			{
+				b[0] = (byte)first;
+				Utils.readFully(in, b, 1, 3);
+				Utils.skipFully(in, (b[0] & 0xff) | ((b[1] & 0xff) << 8) | ((b[2] & 0xff) << 16) | ((b[3] & 0xff) << 24)); // Record size
+				recorder.add(vo);
+				vo = location.getPosition();
+			}
+			recorder.write(bamFile, vo);
+		}
+		finally
+		{
+			reader.close();
+			if(inflaterPool != null)
+			{
+				inflaterPool.shutdown();
+				PipelinedBgzfInputStream.releaseInflaters();
+			}
+		}
+	}
+
+	/**
+	 * Virtual offsets of the records read (by a job, or the whole file), kept for writing the split index
+	 */
+	public static class Recorder
+	{
+		private final TLongArrayList offsets = new TLongArrayList(); // Of every GRANULARITY-th record
+		private long nbRecords = 0;
+		
+		// A range (job) does not know how many records are before it, so it keeps the offsets of all its records: the address of each block, and the offset of each record in its block
+		private TLongArrayList blockAddresses = null;
+		private TIntArrayList firstRecords = null; // Index of the first record of each block
+		private TCharArrayList blockOffsets = null;
+
+		public Recorder()
+		{
+		}
+
+		/**
+		 * @param range the recorded records are a range of the file, merged afterwards with addAll()
+		 */
+		public Recorder(boolean range)
+		{
+			if(range)
+			{
+				this.blockAddresses = new TLongArrayList();
+				this.firstRecords = new TIntArrayList();
+				this.blockOffsets = new TCharArrayList();
+			}
+		}
+
+		/**
+		 * @param virtualOffset of the next record
+		 */
+		public void add(long virtualOffset)
+		{
+			if(blockOffsets != null)
+			{
+				long address = BlockCompressedFilePointerUtil.getBlockAddress(virtualOffset);
+				if(blockAddresses.isEmpty() || blockAddresses.get(blockAddresses.size() - 1) != address)
+				{
+					blockAddresses.add(address);
+					firstRecords.add(blockOffsets.size());
+				}
+				blockOffsets.add((char)BlockCompressedFilePointerUtil.getBlockOffset(virtualOffset));
+			}
+			else if(nbRecords % GRANULARITY == 0) offsets.add(virtualOffset);
+			nbRecords++;
+		}
+
+		/**
+		 * Append the offsets of the next range of records (jobs are merged in file order), keeping those of every GRANULARITY-th record of the file
+		 */
+		public void addAll(Recorder range)
+		{
+			int block = 0;
+			for(int i = (int)((GRANULARITY - nbRecords % GRANULARITY) % GRANULARITY); i < range.blockOffsets.size(); i += GRANULARITY)
+			{
+				while(block + 1 < range.firstRecords.size() && range.firstRecords.get(block + 1) <= i) block++;
+				offsets.add(BlockCompressedFilePointerUtil.makeFilePointer(range.blockAddresses.get(block), range.blockOffsets.get(i)));
+			}
+			nbRecords += range.nbRecords;
+		}
+
+		/**
+		 * Write the split index of this BAM file (a warning is printed if it cannot be written, e.g. read-only folder)
+		 * @param endVirtualOffset virtual offset of the end of the records
+		 */
+		public void write(File bamFile, long endVirtualOffset)
+		{
+			File f = getFile(bamFile);
+			File tmp = null; // Renamed to f once complete, so that other runs on the same BAM file never read a partial index
+			try
+			{
+				tmp = File.createTempFile(f.getName() + ".", ".tmp", f.getAbsoluteFile().getParentFile());
+				BinaryCodec codec = new BinaryCodec(new BufferedOutputStream(new FileOutputStream(tmp)));
+				codec.writeBytes(new byte[] { 'S', 'B', 'I', 1 });
+				codec.writeLong(bamFile.length());
+				codec.writeBytes(new byte[16]); // MD5 (not computed)
+				codec.writeBytes(new byte[16]); // UUID (none)
+				codec.writeLong(nbRecords);
+				codec.writeLong(GRANULARITY);
+				boolean withEnd = offsets.isEmpty() || endVirtualOffset > offsets.get(offsets.size() - 1);
+				codec.writeLong(offsets.size() + (withEnd?1:0));
+				for(int i = 0; i < offsets.size(); i++) codec.writeLong(offsets.get(i));
+				if(withEnd) codec.writeLong(endVirtualOffset);
+				codec.close();
+				Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				System.out.println("Split index written to " + f + " (exact splits for the next parallel runs)");
+			}
+			catch(RuntimeException e) // BinaryCodec reports IO errors as runtime exceptions
+			{
+				if(tmp != null) tmp.delete();
+				new WarningMessage("Cannot write the split index " + f + ": " + e.getMessage());
+			}
+			catch(IOException ioe)
+			{
+				if(tmp != null) tmp.delete();
+				new WarningMessage("Cannot write the split index " + f + ": " + ioe.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,3 @@
+package com.frc.parameters;
+
+public enum FeatureIndexType{TREE, SEGMENTS};
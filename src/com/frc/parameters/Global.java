@@ -1,10 +1,25 @@
 package com.frc.parameters;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+import com.intervals.PointIndex;
 
 public class Global 
 {
 	public static HashMap<String, String> mappingGeneIdGeneName = null;
 	public static HashMap<String, Integer> geneIndex = null;
 	public static HashMap<String, String> mappingBarcodeName = null;
+	public static LinkedHashMap<String, PointIndex> variants = null; // VCF mode: the features are the variants, by reference sequence (geneIndex is empty)
+	
+	/**
+	 * @return the number of features (genes, or variants in VCF mode), i.e. the size of the count arrays
+	 */
+	public static int getNbFeatures()
+	{
+		if(variants == null) return geneIndex.size();
+		int nb = 0;
+		for(PointIndex index:variants.values()) nb += index.size();
+		return nb;
+	}
 }
@@ -1,11 +1,13 @@
 package com.frc.parameters;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 
 import com.errors.ErrorMessage;
 import com.errors.WarningMessage;
+import com.tools.MemoryHandler;
 import com.tools.Utils;
 
 import htsjdk.tribble.annotation.Strand;
@@ -15,10 +17,13 @@ public class Parameters {
 
 	// Input parameters
 	public static String outputFolder = null;
-	public static File inputBAMFile = null;
+	public static File inputBAMFile = null; // First BAM file
+	public static ArrayList<File> inputBAMFiles = new ArrayList<File>(); // All BAM files (several in batch mode)
+	public static ArrayList<String> sampleNames = new ArrayList<String>(); // Sample of each BAM file (its column in batch mode)
 	public static File inputGTFFile = null;
 	public static File inputVCFFile = null;
 	public static File inputBEDFile = null;
+	public static File referenceFile = null; // FASTA reference of the CRAM files
 	public static Strand stranded = Strand.NONE;
 	public static int minAQual = 10;
 	public static HashSet<String> barcodes = null;
@@ -29,7 +34,12 @@ public class Parameters {
 	public static boolean use_bam_tags = false;
 	public static boolean is_paired = false;
 	public static UMIDedup umi_dedup = UMIDedup.NONE;
+	public static FeatureIndexType featureIndex = FeatureIndexType.TREE;
+	public static boolean writeIndexCache = false; // Write the index of the GTF file (file.gtf.frcidx) for the next runs
 	public static int nbThreads = 1;
+	public static int nbInflaterThreads = 1;
+	public static boolean writeSplitIndex = false; // Only write the split index of the BAM files (--split-index)
+	public static int maxBufferedMates = 0; // Max number of reads waiting for their mate in memory, before spilling them to disk (0 = depends on the heap size)
 
 	public static void load(String[] args) throws Exception {
 		for (int i = 0; i < args.length; i++) {
@@ -71,6 +81,16 @@ public class Parameters {
 						is_paired = true;
 						break;
 					case "--bam":
+						i++;
+						try {
+							Utils.readBAMList(args[i]);
+							inputBAMFile = inputBAMFiles.get(0);
+						} catch (Exception e) {
+							new ErrorMessage("The '--bam' option should be followed by aligned BAM file path(s), or a manifest file. "
+									+ e.getMessage() + ". You entered " + args[i]);
+						}
+						break;
+					case "--gtf":
 						i++;
 						try {
 							File c = new File(args[i]);
@@ -78,13 +98,13 @@ public class Parameters {
 								new ErrorMessage("No file at path " + args[i]);
 							if (!c.isFile())
 								new ErrorMessage(args[i] + " is not a file");
-							inputBAMFile = c;
+							inputGTFFile = c;
 						} catch (Exception e) {
-							new ErrorMessage("The '--bam' option should be followed by aligned BAM file path. "
-									+ e.getMessage() + ". You entered " + args[i]);
+							new ErrorMessage("The '--gtf' option should be followed by GTF file path. " + e.getMessage()
+									+ ". You entered " + args[i]);
 						}
 						break;
-					case "--gtf":
+					case "--reference":
 						i++;
 						try {
 							File c = new File(args[i]);
@@ -92,15 +112,23 @@ public class Parameters {
 								new ErrorMessage("No file at path " + args[i]);
 							if (!c.isFile())
 								new ErrorMessage(args[i] + " is not a file");
-							inputGTFFile = c;
+							if (!new File(args[i] + ".fai").exists())
+								new ErrorMessage("The reference " + args[i] + " is not indexed. Please index it with 'samtools faidx'");
+							referenceFile = c;
 						} catch (Exception e) {
-							new ErrorMessage("The '--gtf' option should be followed by GTF file path. " + e.getMessage()
+							new ErrorMessage("The '--reference' option should be followed by FASTA file path. " + e.getMessage()
 									+ ". You entered " + args[i]);
 						}
 						break;
 					case "--bamtag":
 						use_bam_tags = true;
 						break;
+					case "--split-index":
+						writeSplitIndex = true;
+						break;
+					case "--index-cache":
+						writeIndexCache = true;
+						break;
 					case "--umi-dedup":
 						i++;
 						switch (args[i]) {
@@ -115,6 +143,20 @@ public class Parameters {
 										"The '--umi-dedup' option should be followed by one of the following parameters: [none, exact].");
 						}
 						break;
+					case "--feature-index":
+						i++;
+						switch (args[i]) {
+							case "tree":
+								Parameters.featureIndex = FeatureIndexType.TREE;
+								break;
+							case "segments":
+								Parameters.featureIndex = FeatureIndexType.SEGMENTS;
+								break;
+							default:
+								new ErrorMessage(
+										"The '--feature-index' option should be followed by one of the following parameters: [tree, segments].");
+						}
+						break;
 					case "--bed":
 						i++;
 						try {
@@ -193,6 +235,34 @@ public class Parameters {
 									+ "). Optimal/maximum number should be ~nbLogicalThreads/2 = "
 									+ nbLogicalThreads / 2);
 						break;
+					case "--inflater-threads":
+						i++;
+						try {
+							nbInflaterThreads = Integer.parseInt(args[i]);
+						} catch (NumberFormatException nfe) {
+							new ErrorMessage(
+									"The '--inflater-threads' option should be followed by an Integer. You entered "
+											+ args[i]);
+						}
+						if (nbInflaterThreads < 1)
+							new ErrorMessage(
+									"The '--inflater-threads' option should be followed by a positive Integer. You entered "
+											+ nbInflaterThreads);
+						break;
+					case "--max-buffered-mates":
+						i++;
+						try {
+							maxBufferedMates = Integer.parseInt(args[i]);
+						} catch (NumberFormatException nfe) {
+							new ErrorMessage(
+									"The '--max-buffered-mates' option should be followed by an Integer. You entered "
+											+ args[i]);
+						}
+						if (maxBufferedMates < 1)
+							new ErrorMessage(
+									"The '--max-buffered-mates' option should be followed by a positive Integer. You entered "
+											+ maxBufferedMates);
+						break;
 					case "--multiple-mapped":
 						keep_multiple_mapped_reads = true;
 						break;
@@ -204,6 +274,9 @@ public class Parameters {
 		if (inputBAMFile == null) {
 			new ErrorMessage("Please use '--bam' option to specify the path of the aligned BAM file");
 		}
+		if (writeSplitIndex)
+			return; // No counting
+
 		int c = 0;
 		if (inputGTFFile != null)
 			c++;
@@ -222,11 +295,16 @@ public class Parameters {
 			Parameters.stranded = Strand.NONE;
 		}
 		System.out.println("[Parameters]");
+		if (inputBAMFiles.size() > 1)
+			System.out.println("Batch mode: " + inputBAMFiles.size() + " BAM files, counted in "
+					+ new HashSet<String>(sampleNames).size() + " samples");
 		if (!use_bam_tags) {
 			if (Parameters.umi_dedup != UMIDedup.NONE)
 				new ErrorMessage(
 						"You cannot specify --umi-dedup option without the --bamtag option, i.e. FRC can only count UMIs that are already annotated in the BAM file.");
 			System.out.println("Stranded = " + Parameters.stranded);
+			if (Parameters.featureIndex == FeatureIndexType.SEGMENTS)
+				System.out.println("Features are indexed as disjoint segments");
 		} else {
 			if (inputGTFFile == null)
 				new ErrorMessage("The option --bamtag can only be used with option --gtf");
@@ -255,6 +333,12 @@ public class Parameters {
 		Global.mappingBarcodeName.put("Unknown", "Unknown");
 
 		System.out.println("Samples will be treated as " + (Parameters.is_paired ? "PAIRED-END" : "SINGLE-END"));
+		if (Parameters.is_paired) {
+			if (maxBufferedMates == 0)
+				maxBufferedMates = (int) Math.min(Integer.MAX_VALUE, MemoryHandler.maxHeap_legacy / 4 / 256); // ~256 bytes per buffered read, using 1/4 of the heap
+			// In parallel mode, this bounds the reads left by the partitions of the file (each partition has its own buffer)
+			System.out.println("At most " + maxBufferedMates + " reads will wait for their mate in memory (then they are spilled to disk)");
+		}
 
 		if (outputFolder == null) {
 			String path = inputBAMFile.getAbsolutePath();
@@ -273,11 +357,14 @@ public class Parameters {
 			System.out.println("Run is NOT parallelized: 1 thread is used");
 		else
 			System.out.println("Run IS parallelized: " + nbThreads + " threads are used");
+		if (nbInflaterThreads > 1)
+			System.out.println("BGZF blocks are inflated by " + nbInflaterThreads + " threads");
 	}
 
 	public static void printHelp() {
 		System.out.println("FastReadCounter (FRC) " + Parameters.currentVersion + "\n\nOptions:");
-		System.out.println("\t--bam %s \t\tPath of BAM file (do not need to be sorted or indexed)");
+		System.out.println("\t--bam %s \t\tPath of BAM file (do not need to be sorted or indexed). CRAM files are read too (see --reference). Use '-' for reading a BAM (compressed or not), CRAM or SAM from the standard input. Several BAM files can be given as a comma-separated list, or as a manifest file (one BAM path per line, optionally followed by a tab and its sample name; BAM files of a same sample are summed)");
+		System.out.println("\t--reference %s \tPath of the (indexed) FASTA reference of the CRAM files (default = REF_PATH, as samtools)");
 		System.out.println("\t--gtf %s \t\tPath of GTF file");
 		System.out.println("\t--bed %s \t\tPath of BED file");
 		System.out.println("\t--vcf %s \t\tPath of VCF file");
@@ -292,8 +379,18 @@ public class Parameters {
 				"\t--umi-dedup %s \t\t[none, exact] How to dedup the UMIs (only if using --bamtag option, default = none)");
 		System.out.println(
 				"\t-s %s \t\t\t[no, yes, reverse] Do you want to count only reads falling on same strand than feature? (default = no, unused with option --bamtag)");
+		System.out.println(
+				"\t--feature-index %s \t[tree, segments] How the features are indexed: interval trees, or disjoint segments labelled with their set of features (faster for dense annotations, default = tree)");
+		System.out.println(
+				"\t--index-cache \t\t[Use with --gtf] Write the index of the GTF file (file.gtf.frcidx). Next runs read it instead of parsing the GTF file, as long as the GTF file is unchanged");
 		System.out.println("\t-q %i \t\t\tMinimum quality required for a read to be counted (default = 10)");
 		System.out.println("\t-t | --threads %i \tNumber of threads to use (default = 1)");
+		System.out.println(
+				"\t--inflater-threads %i \tNumber of threads inflating the BGZF blocks of the BAM file (default = 1, or same as -t when parallelized)");
+		System.out.println(
+				"\t--max-buffered-mates %i \t[Use with --paired] Number of reads waiting for their mate kept in memory, before spilling them to the temporary folder (default = depends on the heap size)");
 		System.out.println("\t-o %s \t\t\tOutput folder (default = folder of BAM file)");
+		System.out.println(
+				"\t--split-index \t\tOnly write the split index of the BAM file(s) (file.bam.sbi), used for splitting them exactly and instantly in parallel mode. It is also written by the first run reading a BAM file");
 	}
 }
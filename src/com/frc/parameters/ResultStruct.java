@@ -4,8 +4,10 @@ import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.Map;
 
 import com.errors.ErrorMessage;
+import com.intervals.PointIndex;
 import com.tools.DNAHashing;
 import com.tools.Utils;
 
@@ -69,6 +71,7 @@ public class ResultStruct
 		this.countedUnique += tmp.countedUnique;
 	}
 	
+	@SuppressWarnings("unchecked")
 	public void add(ResultStruct tmp)
 	{
 		if(!this.barcode.equals(tmp.barcode)) new ErrorMessage("Cannot merge different barcodes");
@@ -82,32 +85,58 @@ public class ResultStruct
 			this.counts[i] += tmp.counts[i];
 		}
 		
-		// UMI matrix
-		if(this.umis != null && tmp.umis == null) new ErrorMessage("UMI array length are different for sample " + this.barcode);
-		if(this.umis == null && tmp.umis != null) new ErrorMessage("UMI array length are different for sample " + this.barcode);
-		if(this.umis != null && tmp.umis != null)
+		// UMI matrix (one of the two may not have seen any UMI yet)
+		if(this.umis == null) this.umis = tmp.umis;
+		else if(tmp.umis != null)
 		{
 			if(this.umis.length != tmp.umis.length) new ErrorMessage("UMI array length are different for sample " + this.barcode);
-			for(int i = 0; i < this.umis.length; i++)
-			{
-				// TODO
-				//if(this.isLong) (THashSet<Long>)(this.umis[i]).addAll((THashSet<Long>)tmp.umis[i]);
-				//else (THashSet<Integer>)(this.umis[i]).addAll((THashSet<Integer>)tmp.umis[i]);
-			}
+			for(int i = 0; i < this.umis.length; i++) ((THashSet<Object>)this.umis[i]).addAll(tmp.umis[i]);
 		}
 	}
 	
-	@SuppressWarnings("unchecked")
+	/**
+	 * Remove counts that were added to this struct, but not their UMIs (a UMI cannot be removed from a set, see MateBuffer.undoPairs)
+	 */
+	public void remove(ResultStruct tmp)
+	{
+		this.nbReads -= tmp.nbReads;
+		this.unmapped -= tmp.unmapped;
+		this.notUnique -= tmp.notUnique;
+		this.ambiguous -= tmp.ambiguous;
+		this.mapped -= tmp.mapped;
+		this.noFeature -= tmp.noFeature;
+		this.toolowAqual -= tmp.toolowAqual;
+		this.duplicates -= tmp.duplicates;
+		this.foundGXTag -= tmp.foundGXTag;
+		this.foundUTag -= tmp.foundUTag;
+		this.mateUnmapped -= tmp.mateUnmapped;
+		this.properlyPaired -= tmp.properlyPaired;
+		this.countedPair -= tmp.countedPair;
+		this.countedUnique -= tmp.countedUnique;
+		for(int i = 0; i < this.counts.length; i++) this.counts[i] -= tmp.counts[i];
+	}
+	
 	public void addUMI(int index, String umi)
+	{
+		addUMI(index, DNAHashing.convertNuclStrToInt64(umi), umi.length());
+	}
+	
+	/**
+	 * @param umi UMI packed on 2 bits per nucleotide (see DNAHashing)
+	 * @param length length of the UMI (in nt)
+	 */
+	@SuppressWarnings("unchecked")
+	public void addUMI(int index, long umi, int length)
 	{
 		if(this.umis == null) // Init here?
 		{	
 			this.umis = new THashSet<?>[this.counts.length]; // umis
-			if(umi.length() <= 16) for(int i = 0; i < this.umis.length; i++) this.umis[i] = new THashSet<Integer>();
-			else if(umi.length() <= 32) { isLong = true; for(int i = 0; i < this.umis.length; i++) this.umis[i] = new THashSet<Long>(); }
+			if(length <= 16) for(int i = 0; i < this.umis.length; i++) this.umis[i] = new THashSet<Integer>();
+			else if(length <= 32) { isLong = true; for(int i = 0; i < this.umis.length; i++) this.umis[i] = new THashSet<Long>(); }
 			else new ErrorMessage("Cannot procede UMIs greater than 32nt");
 		}
-		((THashSet<Integer>)this.umis[index]).add(DNAHashing.convertNuclStrToInt32(umi));
+		if(isLong) ((THashSet<Long>)this.umis[index]).add(umi);
+		else ((THashSet<Integer>)this.umis[index]).add((int)umi);
 	}
 	
 	public static void createOutputDGE(HashMap<String, ResultStruct> results)
@@ -132,7 +161,6 @@ public class ResultStruct
 			}			
 			
 			// Sorted indexes
-			String[] sortedGeneKeys = Utils.sortKeys(Global.geneIndex);
 			String[] sortedBarcodeKeys = Utils.sortKeysByValues(Global.mappingBarcodeName);
 			
 			// Header
@@ -155,26 +183,22 @@ public class ResultStruct
 			if(bw_umis_detailed != null) bw_umis_detailed.write("\n");
 			
 			// Actual values
-			for(String gene:sortedGeneKeys)
+			if(Global.variants != null) // VCF mode: by reference sequence and position
+			{
+				for(Map.Entry<String, PointIndex> e:Global.variants.entrySet())
+				{
+					PointIndex index = e.getValue();
+					for(int i = 0; i < index.size(); i++) writeFeature(e.getKey() + ":" + index.getPosition(i), index.getName(i), index.getId(i), sortedBarcodeKeys, results, bw_reads, bw_umis, bw_reads_detailed, bw_umis_detailed);
+				}
+			}
+			else
 			{
-				String mappedGene = Global.mappingGeneIdGeneName.get(gene);
-				if(mappedGene == null) mappedGene = "";
-				bw_reads.write(gene);
-				if(bw_umis != null) bw_umis.write(gene);
-				bw_reads_detailed.write(gene + "\t" + mappedGene); 
-				if(bw_umis_detailed != null) bw_umis_detailed.write(gene + "\t" + mappedGene);
-				for(String barcode:sortedBarcodeKeys) 
+				for(String gene:Utils.sortKeys(Global.geneIndex))
 				{
-					ResultStruct res = results.get(barcode);
-					bw_reads.write("\t" + res.counts[Global.geneIndex.get(gene)]);
-					if(bw_umis != null) bw_umis.write("\t" + res.umis[Global.geneIndex.get(gene)].size());
-					bw_reads_detailed.write("\t" + res.counts[Global.geneIndex.get(gene)]);
-					if(bw_umis_detailed != null) bw_umis_detailed.write("\t" + res.umis[Global.geneIndex.get(gene)].size());
+					String mappedGene = Global.mappingGeneIdGeneName.get(gene);
+					if(mappedGene == null) mappedGene = "";
+					writeFeature(gene, mappedGene, Global.geneIndex.get(gene), sortedBarcodeKeys, results, bw_reads, bw_umis, bw_reads_detailed, bw_umis_detailed);
 				}
-				bw_reads.write("\n"); 
-				if(bw_umis != null) bw_umis.write("\n");
-				bw_reads_detailed.write("\n");
-				if(bw_umis_detailed != null) bw_umis_detailed.write("\n");
 			}
 			
 			// Write complementing values (same as HTSeq-count)
@@ -248,4 +272,28 @@ public class ResultStruct
 		}
 		System.out.println("\nRead/UMI count matrices written in " + Parameters.outputFolder);
 	}
+	
+	/**
+	 * Write the row of a feature in the count matrices
+	 * @param index of the feature in the count arrays
+	 */
+	private static void writeFeature(String gene, String mappedGene, int index, String[] sortedBarcodeKeys, HashMap<String, ResultStruct> results, BufferedWriter bw_reads, BufferedWriter bw_umis, BufferedWriter bw_reads_detailed, BufferedWriter bw_umis_detailed) throws IOException
+	{
+		bw_reads.write(gene);
+		if(bw_umis != null) bw_umis.write(gene);
+		bw_reads_detailed.write(gene + "\t" + mappedGene); 
+		if(bw_umis_detailed != null) bw_umis_detailed.write(gene + "\t" + mappedGene);
+		for(String barcode:sortedBarcodeKeys) 
+		{
+			ResultStruct res = results.get(barcode);
+			bw_reads.write("\t" + res.counts[index]);
+			if(bw_umis != null) bw_umis.write("\t" + res.umis[index].size());
+			bw_reads_detailed.write("\t" + res.counts[index]);
+			if(bw_umis_detailed != null) bw_umis_detailed.write("\t" + res.umis[index].size());
+		}
+		bw_reads.write("\n"); 
+		if(bw_umis != null) bw_umis.write("\n");
+		bw_reads_detailed.write("\n");
+		if(bw_umis_detailed != null) bw_umis_detailed.write("\n");
+	}
 }
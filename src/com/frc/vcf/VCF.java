@@ -3,11 +3,12 @@ package com.frc.vcf;
 import java.io.BufferedReader;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 
 import com.frc.parameters.Global;
 import com.frc.parameters.Parameters;
 import com.intervals.Forest;
-import com.intervals.IntervalLabelled;
+import com.intervals.PointIndex;
 import com.tools.Utils;
 
 public class VCF
@@ -24,13 +25,13 @@ public class VCF
 	public static void readVCF() throws Exception
 	{
 		System.out.println("\nReading VCF file provided: " + Parameters.inputVCFFile.getAbsolutePath());
-		Global.geneIndex = new HashMap<String, Integer>(); // Fill this as we go
-		Global.mappingGeneIdGeneName = new HashMap<String, String>(); // For filling final matrices
+		Global.geneIndex = new HashMap<String, Integer>(); // Features are the variants (see Global.variants)
+		Global.mappingGeneIdGeneName = new HashMap<String, String>();
+		LinkedHashMap<String, PointIndex> variants = new LinkedHashMap<>(); // By reference sequence, in file order
 		BufferedReader br = Utils.readVCF(Parameters.inputVCFFile);
         
         // Reading Header
 		int l = 0;
-		Forest.init();
 		HashMap<String, Integer> indexes = new HashMap<>();
         String line = br.readLine(); l++;
         while(!line.startsWith("#CHROM")) {line = br.readLine(); l++;}
@@ -57,8 +58,6 @@ public class VCF
    				if(s.refAllele.length() == 1 && s.altAllele.length() == 1) //TODO consider indels
    				{
    					// Parse Line
-   					String feature_id = s.chr + ":" + s.loc;
-   					boolean strand = true;
    					s.isSNP = true;
    					
    					// TODO SPECIFIC CODE TO REMOVE
@@ -89,9 +88,13 @@ public class VCF
    					if((which1 == 0 && which2 == 2) || (which1 == 2 && which2 == 0))
    					{
    						// TODO SPECIFIC CODE TO REMOVE
-	   					Forest.addToTree(s.chr, new IntervalLabelled((int)s.loc - 1, (int)s.loc, feature_id, strand));
-	   					Global.geneIndex.put(feature_id, nbFeatures);
-	   					Global.mappingGeneIdGeneName.put(feature_id, s.rsId);
+	   					PointIndex index = variants.get(s.chr);
+	   					if(index == null)
+	   					{
+	   						index = new PointIndex();
+	   						variants.put(s.chr, index);
+	   					}
+	   					index.addPoint((int)s.loc, (byte)s.refAllele.charAt(0), (byte)s.altAllele.charAt(0), s.rsId);
 	   					nbFeatures++;
    					}
    				}
@@ -134,6 +137,13 @@ public class VCF
         System.out.println(nbFeatures + " SNPs read from VCF [" + Utils.toReadableTime(System.currentTimeMillis() - start) + "]");
         System.out.println("The VCF File contained " + count + " variants");
         System.out.println(nbFeatures + " variants are SNPs (not INDELs) and thus will be used in the rest of the pipeline");
+        
+        // Sort the SNPs of each reference sequence, and number them in this order
+        int nbPoints = 0;
+        for(PointIndex index:variants.values()) nbPoints += index.build(nbPoints);
+        if(nbPoints != nbFeatures) System.out.println((nbFeatures - nbPoints) + " SNPs are at the position of a previous SNP (e.g. other alleles) and are ignored");
+        Global.variants = variants;
+        Forest.setPoints(variants);
 	}
 		
 	private static boolean checkIntegrity(String allele, int l)
@@ -0,0 +1,59 @@
+package com.intervals;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Features of one reference sequence (and one strand), see Forest. Implemented by IntervalIndex and SegmentIndex (--feature-index)
+ */
+interface FeatureIndex
+{
+	/**
+	 * Add a 1-based closed interval [start, end]
+	 * @param id name index of the feature
+	 */
+	void add(int start, int end, int id);
+
+	/**
+	 * Index the added intervals. No interval can be added after
+	 * @param featureIds final id of each name index
+	 */
+	void build(int[] featureIds);
+
+	/**
+	 * Add the ids of the features overlapping the 1-based closed interval [start, end]
+	 */
+	void query(int start, int end, IntSet result);
+
+	/**
+	 * Write the built index (see IndexCache)
+	 */
+	void write(DataOutputStream out) throws IOException;
+
+	/**
+	 * Read an index written by write(), instead of adding and building it
+	 */
+	void read(ByteBuffer in);
+
+	/**
+	 * @return a new cursor sweeping these features from the start of the reference sequence (see SweepCursor)
+	 */
+	Cursor cursor();
+
+	/**
+	 * Queries of reads sorted by start: the features ending before the current read are expired, the next ones are activated as the queries move forward
+	 */
+	interface Cursor
+	{
+		/**
+		 * Move to the next read. No query can start before readStart after
+		 */
+		void advance(int readStart);
+
+		/**
+		 * Add the ids of the features overlapping the 1-based closed interval [start, end], with start >= the current read start
+		 */
+		void query(int start, int end, IntSet result);
+	}
+}
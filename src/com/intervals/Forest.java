@@ -1,69 +1,340 @@
 package com.intervals;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import com.errors.ErrorMessage;
+import com.errors.WarningMessage;
+import com.frc.parameters.FeatureIndexType;
+import com.frc.parameters.Global;
 import com.frc.parameters.Parameters;
 
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.tribble.annotation.Strand;
-import htsjdk.tribble.index.interval.Interval;
-import htsjdk.tribble.index.interval.IntervalTree;
 
-public class Forest 
+/**
+ * Features (exons, BED regions, SNPs) indexed by reference sequence and strand (see IntervalIndex, or SegmentIndex with --feature-index segments)
+ * Features are added with their name, and found by their id in Global.geneIndex once build() was called
+ * Only the reference sequences of the BAM file(s) are indexed (see setContigs), each one when it is first searched
+ * Reads are counted against the ReferenceFeatures of their file (see setFile), which resolves the reference names of its header once
+ */
+public class Forest
 {
-	private static HashMap<String, IntervalTree> forest = null;
-	
-	public static void init() 
-	{
-		forest = new HashMap<>();
-	}
-	
-	public static void addToTree(String chr, IntervalLabelled interval) 
+	private static HashMap<String, Contig> forest = null;
+	private static HashMap<String, Integer> nameIndexes = null; // Names of the added features (e.g. gene_id of the exons)
+	private static ArrayList<String> names = null;
+	private static int[] featureIds = null; // Id of each name index, for building the indexes
+	private static Set<String> contigs = null; // Reference sequences of the BAM file(s), null if unknown (all features are indexed)
+	private static int nbSkipped = 0; // Features on other reference sequences
+	private static HashSet<String> skipped = null; // Their reference sequences
+	private static volatile boolean namesChecked = false; // Reference names of the annotation were compared to the ones of a BAM header
+	private static final ThreadLocal<ReferenceFeatures> file = new ThreadLocal<>(); // Features of the file read by each thread
+
+	/**
+	 * Features of a reference sequence, searched by the reads (see ReferenceFeatures): a StrandedContig, or the PointIndex of VCF variants
+	 */
+	abstract static class Contig
 	{
-		IntervalTree tree = forest.get(chr);
-		if(tree == null) tree = new IntervalTree();
-		tree.insert(interval);
-		forest.put(chr, tree);
+		/**
+		 * Add the ids of the features overlapping [start, end] to result
+		 * @param strand of the features (see getStrand)
+		 */
+		abstract void query(int start, int end, int strand, IntSet result);
+
+		/**
+		 * @return a new cursor sweeping these features from the start of the reference sequence (see SweepCursor)
+		 */
+		abstract Cursor cursor();
+
+		/**
+		 * Same as FeatureIndex.Cursor, for the features of a strand
+		 */
+		interface Cursor
+		{
+			void advance(int readStart);
+
+			void query(int start, int end, int strand, IntSet result);
+		}
 	}
-	
-	public static HashSet<String> findOverlappingFeatures(String chr, int start, int end, boolean readNegativeStrandFlag, boolean firstInPair)
+
+	/**
+	 * Features of a reference sequence: on the + strand, on the - strand. They are indexed by the first thread searching them
+	 */
+	private static class StrandedContig extends Contig
 	{
-		HashSet<String> result = new HashSet<>();
-		IntervalTree itree = forest.get(chr);
-		if(itree != null)
+		final FeatureIndex[] trees;
+		volatile boolean built = false;
+
+		StrandedContig(FeatureIndex[] trees)
 		{
-			List<Interval> found = itree.findOverlapping(new Interval(start, end));
-			for(Interval i:found) 
+			this.trees = trees;
+		}
+
+		FeatureIndex[] get()
+		{
+			if(!built)
 			{
-				IntervalLabelled g = (IntervalLabelled)i;
-				if(Parameters.stranded == Strand.NONE) result.add(g.featureName);
-				else if(Parameters.stranded == Strand.REVERSE)
+				synchronized(this)
 				{
-					if(!Parameters.is_paired)
-					{
-						if(g.readNegativeStrandFlag == readNegativeStrandFlag) result.add(g.featureName);
-					}
-					else
+					if(!built)
 					{
-						if(firstInPair && g.readNegativeStrandFlag == readNegativeStrandFlag) result.add(g.featureName);
-						if(!firstInPair && g.readNegativeStrandFlag != readNegativeStrandFlag) result.add(g.featureName);
+						trees[0].build(featureIds);
+						trees[1].build(featureIds);
+						built = true;
 					}
 				}
-				else if(Parameters.stranded == Strand.FORWARD)
+			}
+			return trees;
+		}
+
+		@Override
+		void query(int start, int end, int strand, IntSet result)
+		{
+			FeatureIndex[] t = get();
+			if(strand != 1) t[0].query(start, end, result);
+			if(strand != 0) t[1].query(start, end, result);
+		}
+
+		@Override
+		Cursor cursor()
+		{
+			FeatureIndex[] t = get();
+			final FeatureIndex.Cursor plus = t[0].cursor(), minus = t[1].cursor();
+			return new Cursor()
+			{
+				@Override
+				public void advance(int readStart)
 				{
-					if(!Parameters.is_paired)
-					{
-						if(g.readNegativeStrandFlag != readNegativeStrandFlag) result.add(g.featureName);
-					}
-					else
-					{
-						if(firstInPair && g.readNegativeStrandFlag != readNegativeStrandFlag) result.add(g.featureName);
-						if(!firstInPair && g.readNegativeStrandFlag == readNegativeStrandFlag) result.add(g.featureName);
-					}
+					plus.advance(readStart);
+					minus.advance(readStart);
 				}
+
+				@Override
+				public void query(int start, int end, int strand, IntSet result)
+				{
+					if(strand != 1) plus.query(start, end, result);
+					if(strand != 0) minus.query(start, end, result);
+				}
+			};
+		}
+	}
+
+	public static void init()
+	{
+		forest = new HashMap<>();
+		nameIndexes = new HashMap<>();
+		names = new ArrayList<>();
+		nbSkipped = 0;
+		skipped = new HashSet<>();
+	}
+
+	/**
+	 * Only index the features of these reference sequences (e.g. the ones of the BAM headers, without the alt/patch/decoy contigs of the annotation). Call it before init()
+	 * @param chrs null for indexing all features
+	 */
+	public static void setContigs(Set<String> chrs)
+	{
+		contigs = chrs;
+	}
+
+	/**
+	 * Add a feature on a 1-based closed interval [start, end]
+	 * @param strand true for the + strand
+	 */
+	public static void addToTree(String chr, int start, int end, String featureName, boolean strand)
+	{
+		StrandedContig contig = (StrandedContig)forest.get(chr);
+		if(contig == null)
+		{
+			if(contigs != null && !contigs.contains(chr))
+			{
+				nbSkipped++;
+				skipped.add(chr);
+				return;
 			}
+			contig = new StrandedContig(new FeatureIndex[] { newIndex(), newIndex() });
+			forest.put(chr, contig);
 		}
-		return result;
+		Integer index = nameIndexes.get(featureName);
+		if(index == null)
+		{
+			index = names.size();
+			names.add(featureName);
+			nameIndexes.put(featureName, index);
+		}
+		contig.trees[strand?0:1].add(start, end, index);
+	}
+
+	static FeatureIndex newIndex()
+	{
+		return (Parameters.featureIndex == FeatureIndexType.SEGMENTS)?new SegmentIndex():new IntervalIndex();
+	}
+
+	/**
+	 * Resolve the ids of the added features in Global.geneIndex (call it once all features and genes were read). The indexes are built when they are first searched
+	 * Features without id (e.g. exons of a gene_id without 'gene' line) get negative ids: they still make reads ambiguous, but are not counted
+	 */
+	public static void build()
+	{
+		featureIds = new int[names.size()];
+		int nbUnknown = 0;
+		for(int i = 0; i < featureIds.length; i++)
+		{
+			Integer id = Global.geneIndex.get(names.get(i));
+			featureIds[i] = (id != null)?id:-(++nbUnknown);
+		}
+		if(nbUnknown != 0) new WarningMessage(nbUnknown + " features are not in the list of genes/features (e.g. exons of a gene_id without 'gene' line). Reads on these features only are not counted.");
+		if(nbSkipped != 0) System.out.println(nbSkipped + " features on reference sequences absent from the BAM file(s) (e.g. alt/patch/decoy contigs) are not indexed.");
+		if(contigs != null) checkNames(skipped, contigs, forest.isEmpty());
+		nameIndexes = null;
+		names = null;
+		skipped = null;
+	}
+
+	/**
+	 * Stop if the reference sequences of the annotation and of the BAM file(s) are named differently (e.g. 'chr1' and '1'): no read would be counted. Warn if only some of them are
+	 * @param absent reference sequences of the annotation absent from the BAM file(s)
+	 * @param bamNames reference sequences of the BAM file(s)
+	 * @param noFeature true if there is no feature on any of them
+	 */
+	private static void checkNames(Set<String> absent, Set<String> bamNames, boolean noFeature)
+	{
+		namesChecked = true;
+		String example = null;
+		int nbMismatches = 0;
+		for(String chr:absent)
+		{
+			String alias = alias(chr);
+			if(bamNames.contains(alias))
+			{
+				if(example == null) example = "'" + chr + "' in the annotation, '" + alias + "' in the BAM file(s)";
+				nbMismatches++;
+			}
+		}
+		if(nbMismatches == 0) return;
+		if(noFeature) new ErrorMessage("The reference sequences of the annotation are not named as in the BAM file(s) (e.g. " + example + "). No read would be counted: rename the reference sequences of the annotation.");
+		new WarningMessage(nbMismatches + " reference sequences of the annotation are named differently in the BAM file(s) (e.g. " + example + "). Their features are not counted.");
+	}
+
+	/**
+	 * @return the other usual name of a reference sequence: with or without 'chr' (chrM is MT)
+	 */
+	private static String alias(String chr)
+	{
+		if(chr.equals("chrM")) return "MT";
+		if(chr.equals("MT")) return "chrM";
+		return chr.startsWith("chr")?chr.substring(3):"chr" + chr;
+	}
+
+	/**
+	 * @return the strand of the features a read can overlap: 0 for +, 1 for -, -1 for both (not --stranded)
+	 */
+	static int getStrand(boolean readNegativeStrandFlag, boolean firstInPair)
+	{
+		if(Parameters.stranded == Strand.NONE) return -1;
+		// REVERSE: the read (the first mate, in paired-end) is on the strand opposite to the feature. FORWARD: on the same strand
+		boolean plus = readNegativeStrandFlag ^ (Parameters.stranded == Strand.FORWARD) ^ (Parameters.is_paired && !firstInPair);
+		return plus?0:1;
+	}
+
+	/**
+	 * @return all the indexes (built), by reference sequence (see IndexCache)
+	 */
+	static HashMap<String, FeatureIndex[]> getIndexes()
+	{
+		HashMap<String, FeatureIndex[]> indexes = new HashMap<>();
+		for(Map.Entry<String, Contig> e:forest.entrySet()) indexes.put(e.getKey(), ((StrandedContig)e.getValue()).get());
+		return indexes;
+	}
+
+	/**
+	 * Use indexes read from a file (see IndexCache), instead of adding and building them. Only the ones of the BAM file(s) are kept
+	 */
+	static void setIndexes(HashMap<String, FeatureIndex[]> indexes)
+	{
+		HashMap<String, Contig> built = new HashMap<>();
+		for(Map.Entry<String, FeatureIndex[]> e:indexes.entrySet())
+		{
+			StrandedContig contig = new StrandedContig(e.getValue());
+			contig.built = true;
+			built.put(e.getKey(), contig);
+		}
+		setForest(built);
+	}
+
+	/**
+	 * Use the variants of a VCF file, already built (see PointIndex.build), instead of adding features
+	 */
+	public static void setPoints(Map<String, PointIndex> points)
+	{
+		setForest(points);
+	}
+
+	/**
+	 * Use these built features. Only the ones of the BAM file(s) are kept
+	 */
+	private static void setForest(Map<String, ? extends Contig> built)
+	{
+		forest = new HashMap<>();
+		HashSet<String> absent = new HashSet<>();
+		for(Map.Entry<String, ? extends Contig> e:built.entrySet())
+		{
+			if(contigs != null && !contigs.contains(e.getKey()))
+			{
+				absent.add(e.getKey());
+				continue;
+			}
+			forest.put(e.getKey(), e.getValue());
+		}
+		if(contigs != null) checkNames(absent, contigs, forest.isEmpty());
+		nameIndexes = null;
+		names = null;
+	}
+
+	/**
+	 * Count the reads of this thread against the features of this BAM header (until restoreFile)
+	 * @param sorted true if its reads are sorted by coordinate (their overlaps are resolved with a sweep line, see SweepCursor)
+	 * @return the features of the file previously read by this thread (e.g. the caller of a job run in its own thread), for restoreFile
+	 */
+	public static ReferenceFeatures setFile(SAMFileHeader header, boolean sorted)
+	{
+		ReferenceFeatures previous = file.get();
+		if(forest == null) return previous; // --bamtag
+		HashSet<String> absent = namesChecked?null:new HashSet<>(forest.keySet());
+		HashSet<String> bamNames = namesChecked?null:new HashSet<>();
+		Contig[] contigs = new Contig[header.getSequenceDictionary().size()];
+		for(SAMSequenceRecord sequence:header.getSequenceDictionary().getSequences())
+		{
+			contigs[sequence.getSequenceIndex()] = forest.get(sequence.getSequenceName());
+			if(absent != null)
+			{
+				absent.remove(sequence.getSequenceName());
+				bamNames.add(sequence.getSequenceName());
+			}
+		}
+		if(absent != null) checkNames(absent, bamNames, absent.size() == forest.size()); // Not checked yet if the BAM file is a stream (see setContigs)
+		file.set(new ReferenceFeatures(contigs, sorted));
+		return previous;
+	}
+
+	/**
+	 * Undo setFile
+	 */
+	public static void restoreFile(ReferenceFeatures previous)
+	{
+		if(previous == null) file.remove();
+		else file.set(previous);
+	}
+
+	/**
+	 * @return the features of the file read by this thread (see setFile)
+	 */
+	public static ReferenceFeatures getReferenceFeatures()
+	{
+		return file.get();
 	}
 }
@@ -0,0 +1,213 @@
+package com.intervals;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.errors.WarningMessage;
+import com.frc.parameters.Global;
+import com.frc.parameters.Parameters;
+
+/**
+ * Binary cache of an annotation file (file.gtf.frcidx): Global.geneIndex, Global.mappingGeneIdGeneName and the built Forest, written by --index-cache
+ * Next runs map it and copy its arrays, instead of parsing the annotation file. It is ignored if the annotation file changed (length and CRC32), or if it was built with another --feature-index
+ */
+public class IndexCache
+{
+	public static final String FILE_EXTENSION = ".frcidx";
+	private static final int MAGIC = 0x46524349; // "FRCI"
+	private static final int VERSION = 1;
+	private static final int NO_FEATURES = -1; // Written with --bamtag: only the genes
+
+	/**
+	 * @return the cache file of this annotation file
+	 */
+	public static File getFile(File annotationFile)
+	{
+		return new File(annotationFile.getPath() + FILE_EXTENSION);
+	}
+
+	/**
+	 * Fill Global.geneIndex, Global.mappingGeneIdGeneName and the Forest (unless --bamtag) from the cache of this annotation file
+	 * @return false if there is no valid cache for this annotation file and these parameters (then it should be parsed)
+	 */
+	public static boolean load(File annotationFile) throws IOException
+	{
+		File f = getFile(annotationFile);
+		if(!f.isFile()) return false;
+		ByteBuffer in;
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try
+		{
+			in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		}
+		finally
+		{
+			raf.close();
+		}
+		try
+		{
+			if(in.getInt() != MAGIC || in.getInt() != VERSION) return false;
+			if(in.getLong() != annotationFile.length() || in.getLong() != checksum(annotationFile))
+			{
+				System.out.println(f.getName() + " is outdated, " + annotationFile.getName() + " changed since it was written (use --index-cache to refresh it).");
+				return false;
+			}
+			int engine = in.getInt();
+			if(!Parameters.use_bam_tags && engine != Parameters.featureIndex.ordinal())
+			{
+				System.out.println(f.getName() + " was written " + ((engine == NO_FEATURES)?"with --bamtag":"for another --feature-index") + ", it is not used.");
+				return false;
+			}
+
+			System.out.println("Reading the index of the annotation file: " + f.getAbsolutePath());
+			HashMap<String, Integer> geneIndex = new HashMap<String, Integer>();
+			HashMap<String, String> mappingGeneIdGeneName = new HashMap<String, String>();
+			int nbGenes = in.getInt();
+			for(int i = 0; i < nbGenes; i++)
+			{
+				String id = readString(in);
+				geneIndex.put(id, in.getInt());
+				mappingGeneIdGeneName.put(id, readString(in));
+			}
+			Global.geneIndex = geneIndex;
+			Global.mappingGeneIdGeneName = mappingGeneIdGeneName;
+			if(Parameters.use_bam_tags) return true;
+
+			HashMap<String, FeatureIndex[]> indexes = new HashMap<>();
+			int nbChr = in.getInt();
+			for(int i = 0; i < nbChr; i++)
+			{
+				String chr = readString(in);
+				FeatureIndex[] trees = new FeatureIndex[] { Forest.newIndex(), Forest.newIndex() };
+				trees[0].read(in);
+				trees[1].read(in);
+				indexes.put(chr, trees);
+			}
+			Forest.setIndexes(indexes);
+			System.out.println(nbGenes + " genes/features on " + nbChr + " reference sequences were read from the index.");
+			return true;
+		}
+		catch(RuntimeException e) // Truncated or corrupted file
+		{
+			new WarningMessage("Ignoring invalid index " + f + ": " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * Write the cache of this annotation file, once it was read (a warning is printed if it cannot be written, e.g. read-only folder)
+	 */
+	public static void write(File annotationFile)
+	{
+		File f = getFile(annotationFile);
+		try
+		{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+			try
+			{
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(annotationFile.length());
+				out.writeLong(checksum(annotationFile));
+				out.writeInt(Parameters.use_bam_tags?NO_FEATURES:Parameters.featureIndex.ordinal());
+				out.writeInt(Global.geneIndex.size());
+				for(Map.Entry<String, Integer> gene:Global.geneIndex.entrySet())
+				{
+					writeString(out, gene.getKey());
+					out.writeInt(gene.getValue());
+					writeString(out, Global.mappingGeneIdGeneName.get(gene.getKey()));
+				}
+				if(!Parameters.use_bam_tags)
+				{
+					HashMap<String, FeatureIndex[]> indexes = Forest.getIndexes();
+					out.writeInt(indexes.size());
+					for(Map.Entry<String, FeatureIndex[]> e:indexes.entrySet())
+					{
+						writeString(out, e.getKey());
+						e.getValue()[0].write(out);
+						e.getValue()[1].write(out);
+					}
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+			System.out.println("Index of the annotation file written to " + f + " (read instead of " + annotationFile.getName() + " by the next runs)");
+		}
+		catch(IOException ioe)
+		{
+			f.delete();
+			new WarningMessage("Cannot write the index " + f + ": " + ioe.getMessage());
+		}
+	}
+
+	/**
+	 * CRC32 of the whole file (read through a mapping)
+	 */
+	private static long checksum(File file) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			long length = channel.size();
+			byte[] b = new byte[1 << 16];
+			for(long pos = 0; pos < length; pos += Integer.MAX_VALUE)
+			{
+				MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(Integer.MAX_VALUE, length - pos));
+				while(region.hasRemaining())
+				{
+					int n = Math.min(b.length, region.remaining());
+					region.get(b, 0, n);
+					crc.update(b, 0, n);
+				}
+			}
+		}
+		finally
+		{
+			raf.close();
+		}
+		return crc.getValue();
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static String readString(ByteBuffer in)
+	{
+		byte[] b = new byte[in.getInt()];
+		in.get(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	static void writeInts(DataOutputStream out, int[] values) throws IOException
+	{
+		out.writeInt(values.length);
+		for(int v:values) out.writeInt(v);
+	}
+
+	static int[] readInts(ByteBuffer in)
+	{
+		int[] values = new int[in.getInt()];
+		in.asIntBuffer().get(values);
+		in.position(in.position() + values.length * 4);
+		return values;
+	}
+}
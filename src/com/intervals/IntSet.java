@@ -0,0 +1,42 @@
+package com.intervals;
+
+import java.util.Arrays;
+
+/**
+ * Small set of ints (e.g. the features overlapped by a read), reused from read to read. Lookups are linear, which is the fastest for the few values it holds
+ */
+public class IntSet
+{
+	private int[] values = new int[8];
+	private int size = 0;
+
+	public void add(int value)
+	{
+		for(int i = 0; i < size; i++) if(values[i] == value) return;
+		if(size == values.length) values = Arrays.copyOf(values, size * 2);
+		values[size++] = value;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public int get(int i)
+	{
+		return values[i];
+	}
+
+	/**
+	 * Keep only the first values (i.e. forget the ones added after size() was n)
+	 */
+	public void truncate(int n)
+	{
+		if(n < size) size = n;
+	}
+
+	public void clear()
+	{
+		size = 0;
+	}
+}
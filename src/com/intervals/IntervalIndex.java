@@ -0,0 +1,168 @@
+package com.intervals;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Intervals of one reference sequence (and one strand), flattened in primitive arrays sorted by start: an implicit augmented interval tree (as in cgranges)
+ * Node i of level k has its k lowest bits set, its children are i -/+ 2^(k-1), and maxEnds[i] is the max end of its subtree. The root is 2^maxLevel - 1
+ * Intervals are half-open [start, end) internally. Queries allocate nothing, they write the ids of the overlapping features into an IntSet
+ */
+class IntervalIndex implements FeatureIndex
+{
+	private int[] starts = new int[16];
+	private int[] ends = new int[16];
+	private int[] ids = new int[16]; // Name index while building, then feature id
+	private int[] maxEnds = null;
+	private int size = 0;
+	private int maxLevel = -1;
+
+	@Override
+	public void add(int start, int end, int id)
+	{
+		if(size == starts.length)
+		{
+			starts = Arrays.copyOf(starts, size * 2);
+			ends = Arrays.copyOf(ends, size * 2);
+			ids = Arrays.copyOf(ids, size * 2);
+		}
+		starts[size] = start;
+		ends[size] = end + 1;
+		ids[size] = id;
+		size++;
+	}
+
+	/**
+	 * Sort the intervals and compute the max ends of the subtrees
+	 */
+	@Override
+	public void build(int[] featureIds)
+	{
+		// Sort by start, through a permutation packed in longs (start << 32 | position)
+		long[] order = new long[size];
+		for(int i = 0; i < size; i++) order[i] = ((long)starts[i] << 32) | i;
+		Arrays.sort(order);
+		int[] s = new int[size], e = new int[size], f = new int[size];
+		for(int i = 0; i < size; i++)
+		{
+			int j = (int)order[i];
+			s[i] = starts[j];
+			e[i] = ends[j];
+			f[i] = featureIds[ids[j]];
+		}
+		starts = s;
+		ends = e;
+		ids = f;
+
+		// Augment (cgranges' cr_index1)
+		maxEnds = new int[size];
+		if(size == 0) return;
+		int lastI = 0, last = 0;
+		for(int i = 0; i < size; i += 2) { lastI = i; last = maxEnds[i] = ends[i]; } // Leaves
+		int k;
+		for(k = 1; (1L << k) <= size; k++)
+		{
+			int x = 1 << (k - 1), i0 = (x << 1) - 1, step = x << 2;
+			for(int i = i0; i < size; i += step)
+			{
+				int el = maxEnds[i - x];
+				int er = (i + x < size)?maxEnds[i + x]:last;
+				maxEnds[i] = Math.max(ends[i], Math.max(el, er));
+			}
+			lastI = ((lastI >> k & 1) != 0)?lastI - x:lastI + x;
+			if(lastI < size && maxEnds[lastI] > last) last = maxEnds[lastI];
+		}
+		maxLevel = k - 1;
+	}
+
+	@Override
+	public void query(int start, int end, IntSet result)
+	{
+		if(maxLevel >= 0) query((1 << maxLevel) - 1, maxLevel, start, end + 1, result);
+	}
+
+	private void query(int x, int k, int start, int end, IntSet result)
+	{
+		if(k <= 3) // Small subtree: linear scan
+		{
+			int i0 = x >> k << k;
+			int i1 = Math.min(i0 + (1 << (k + 1)) - 1, size);
+			for(int i = i0; i < i1 && starts[i] < end; i++) if(start < ends[i]) result.add(ids[i]);
+			return;
+		}
+		int y = x - (1 << (k - 1)); // Left child
+		if(y >= size || maxEnds[y] > start) query(y, k - 1, start, end, result);
+		if(x < size && starts[x] < end) // Else no interval of the right subtree starts before the end
+		{
+			if(start < ends[x]) result.add(ids[x]);
+			query(x + (1 << (k - 1)), k - 1, start, end, result);
+		}
+	}
+
+	@Override
+	public void write(DataOutputStream out) throws IOException
+	{
+		out.writeInt(maxLevel);
+		IndexCache.writeInts(out, starts);
+		IndexCache.writeInts(out, ends);
+		IndexCache.writeInts(out, ids);
+		IndexCache.writeInts(out, maxEnds);
+	}
+
+	@Override
+	public void read(ByteBuffer in)
+	{
+		maxLevel = in.getInt();
+		starts = IndexCache.readInts(in);
+		ends = IndexCache.readInts(in);
+		ids = IndexCache.readInts(in);
+		maxEnds = IndexCache.readInts(in);
+		size = starts.length;
+	}
+
+	@Override
+	public FeatureIndex.Cursor cursor()
+	{
+		return new Cursor();
+	}
+
+	/**
+	 * Intervals started before the last query, and not ended before the current read, in start order
+	 */
+	private class Cursor implements FeatureIndex.Cursor
+	{
+		private int next = 0; // First interval not activated yet
+		private int[] active = new int[16];
+		private int nbActive = 0;
+		private int readStart = 0;
+
+		@Override
+		public void advance(int readStart)
+		{
+			this.readStart = readStart;
+			int n = 0;
+			for(int i = 0; i < nbActive; i++) if(ends[active[i]] > readStart) active[n++] = active[i];
+			nbActive = n;
+		}
+
+		@Override
+		public void query(int start, int end, IntSet result)
+		{
+			end++;
+			for(; next < size && starts[next] < end; next++)
+			{
+				if(ends[next] <= readStart) continue; // Already ended
+				if(nbActive == active.length) active = Arrays.copyOf(active, nbActive * 2);
+				active[nbActive++] = next;
+			}
+			for(int i = 0; i < nbActive; i++)
+			{
+				int a = active[i];
+				if(starts[a] >= end) break; // Activated by a query further on (e.g. the next block of a spliced read)
+				if(start < ends[a]) result.add(ids[a]);
+			}
+		}
+	}
+}
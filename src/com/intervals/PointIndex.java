@@ -0,0 +1,186 @@
+package com.intervals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Variants of one reference sequence (see VCF), as sorted positions: a few bytes per variant, instead of an interval and named entries in the HashMaps of Global
+ * The variants have consecutive feature ids, from firstId in the order of their positions. A query is a binary search, then a scan of the positions of the block
+ */
+public class PointIndex extends Forest.Contig
+{
+	private int[] positions = new int[16]; // 1-based
+	private byte[] alleles = new byte[32]; // ref, alt of each position
+	private int[] names = new int[16]; // rs number of the ID, NO_NAME, or -2 - index in otherNames
+	private ArrayList<String> otherNames = new ArrayList<>();
+	private int size = 0;
+	private int firstId = 0;
+
+	private static final int NO_NAME = -1; // ID is '.'
+
+	/**
+	 * Add a single-nucleotide variant at this 1-based position
+	 * @param name ID of the variant ('.' if none)
+	 */
+	public void addPoint(int position, byte ref, byte alt, String name)
+	{
+		if(size == positions.length)
+		{
+			positions = Arrays.copyOf(positions, size * 2);
+			alleles = Arrays.copyOf(alleles, size * 4);
+			names = Arrays.copyOf(names, size * 2);
+		}
+		positions[size] = position;
+		alleles[2 * size] = ref;
+		alleles[2 * size + 1] = alt;
+		names[size] = encodeName(name);
+		size++;
+	}
+
+	private int encodeName(String name)
+	{
+		if(name.equals(".")) return NO_NAME;
+		if(name.length() > 2 && name.length() <= 11 && name.startsWith("rs") && name.charAt(2) != '0')
+		{
+			long n = 0;
+			for(int i = 2; i < name.length() && n >= 0; i++)
+			{
+				char c = name.charAt(i);
+				n = (c >= '0' && c <= '9')?n * 10 + (c - '0'):-1;
+			}
+			if(n >= 0 && n <= Integer.MAX_VALUE) return (int)n;
+		}
+		otherNames.add(name);
+		return -2 - (otherNames.size() - 1);
+	}
+
+	/**
+	 * Sort the variants by position, and give them the ids from firstId (before giving them to Forest.setPoints). Only the first variant of a position is kept (e.g. the other alleles of a multi-allelic site)
+	 * @return the number of variants kept
+	 */
+	public int build(int firstId)
+	{
+		this.firstId = firstId;
+		boolean sorted = true;
+		for(int i = 1; i < size && sorted; i++) sorted = positions[i - 1] <= positions[i];
+		if(!sorted)
+		{
+			long[] order = new long[size]; // position << 32 | index, so that a same position stays in file order
+			for(int i = 0; i < size; i++) order[i] = ((long)positions[i] << 32) | i;
+			Arrays.sort(order);
+			int[] p = new int[size], n = new int[size];
+			byte[] a = new byte[2 * size];
+			for(int k = 0; k < size; k++)
+			{
+				int i = (int)order[k];
+				p[k] = positions[i];
+				a[2 * k] = alleles[2 * i];
+				a[2 * k + 1] = alleles[2 * i + 1];
+				n[k] = names[i];
+			}
+			positions = p;
+			alleles = a;
+			names = n;
+		}
+		int kept = 0;
+		for(int i = 0; i < size; i++)
+		{
+			if(kept != 0 && positions[kept - 1] == positions[i]) continue;
+			positions[kept] = positions[i];
+			alleles[2 * kept] = alleles[2 * i];
+			alleles[2 * kept + 1] = alleles[2 * i + 1];
+			names[kept] = names[i];
+			kept++;
+		}
+		size = kept;
+		positions = Arrays.copyOf(positions, size);
+		alleles = Arrays.copyOf(alleles, 2 * size);
+		names = Arrays.copyOf(names, size);
+		return size;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return the feature id of the i-th variant
+	 */
+	public int getId(int i)
+	{
+		return firstId + i;
+	}
+
+	public int getPosition(int i)
+	{
+		return positions[i];
+	}
+
+	public byte getRef(int i)
+	{
+		return alleles[2 * i];
+	}
+
+	public byte getAlt(int i)
+	{
+		return alleles[2 * i + 1];
+	}
+
+	/**
+	 * @return the ID of the i-th variant in the VCF file
+	 */
+	public String getName(int i)
+	{
+		int n = names[i];
+		if(n >= 0) return "rs" + n;
+		if(n == NO_NAME) return ".";
+		return otherNames.get(-2 - n);
+	}
+
+	/**
+	 * Variants have no strand (VCF mode is not stranded)
+	 */
+	@Override
+	void query(int start, int end, int strand, IntSet result)
+	{
+		queryFrom(0, start, end, result);
+	}
+
+	/**
+	 * @param from no position before it is in [start, end]
+	 */
+	private void queryFrom(int from, int start, int end, IntSet result)
+	{
+		// First position >= start
+		int lo = from, hi = size;
+		while(lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if(positions[mid] < start) lo = mid + 1;
+			else hi = mid;
+		}
+		for(int k = lo; k < size && positions[k] <= end; k++) result.add(firstId + k);
+	}
+
+	@Override
+	Forest.Contig.Cursor cursor()
+	{
+		return new Forest.Contig.Cursor()
+		{
+			private int first = 0; // First position not before the current read
+
+			@Override
+			public void advance(int readStart)
+			{
+				while(first < size && positions[first] < readStart) first++;
+			}
+
+			@Override
+			public void query(int start, int end, int strand, IntSet result)
+			{
+				queryFrom(first, start, end, result);
+			}
+		};
+	}
+}
@@ -0,0 +1,41 @@
+package com.intervals;
+
+/**
+ * Indexed features of each reference sequence of a BAM header, by reference index: counting a read never looks up its reference name
+ * One per thread, for the file it reads (see Forest.setFile)
+ */
+public class ReferenceFeatures
+{
+	private final Forest.Contig[] contigs; // null if no feature on this reference sequence
+	private final SweepCursor sweep; // null if the reads are not sorted by coordinate
+	private Forest.Contig current = null;
+	private boolean sweeping = false;
+
+	ReferenceFeatures(Forest.Contig[] contigs, boolean sorted)
+	{
+		this.contigs = contigs;
+		this.sweep = sorted?new SweepCursor(contigs.length):null;
+	}
+
+	/**
+	 * Move to the next read
+	 * @return false if there is no feature on its reference sequence
+	 */
+	public boolean seek(int referenceIndex, int readStart)
+	{
+		if(referenceIndex < 0 || referenceIndex >= contigs.length || contigs[referenceIndex] == null) return false;
+		current = contigs[referenceIndex];
+		sweeping = (sweep != null) && sweep.seek(referenceIndex, current, readStart);
+		return true;
+	}
+
+	/**
+	 * Add the ids of the features overlapping [start, end] (a block of the read given to seek()) to result (only the ones on the expected strand if --stranded)
+	 */
+	public void findOverlappingFeatures(int start, int end, boolean readNegativeStrandFlag, boolean firstInPair, IntSet result)
+	{
+		int strand = Forest.getStrand(readNegativeStrandFlag, firstInPair);
+		if(sweeping) sweep.query(start, end, strand, result);
+		else current.query(start, end, strand, result);
+	}
+}
@@ -0,0 +1,204 @@
+package com.intervals;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Features of one reference sequence (and one strand), precomputed as disjoint segments: each segment is labelled with the id of the (interned) set of features overlapping it
+ * Overlapping intervals of a same feature (e.g. the exons of a gene) are collapsed in the same segments, and consecutive segments with the same set are merged
+ * A query is a binary search, then the members of the few sets of the segments it spans are added to the IntSet (once per set)
+ */
+class SegmentIndex implements FeatureIndex
+{
+	// Added intervals, half-open [start, end)
+	private int[] starts = new int[16];
+	private int[] ends = new int[16];
+	private int[] ids = new int[16]; // Name index
+	private int size = 0;
+
+	// Segments [segStarts[i], segEnds[i]), sorted and disjoint. Positions without feature have no segment
+	private int[] segStarts = null;
+	private int[] segEnds = null;
+	private int[] segSets = null;
+
+	// Members of set s are setMembers[setOffsets[s]..setOffsets[s + 1]), i.e. feature ids
+	private int[] setOffsets = null;
+	private int[] setMembers = null;
+
+	@Override
+	public void add(int start, int end, int id)
+	{
+		if(size == starts.length)
+		{
+			starts = Arrays.copyOf(starts, size * 2);
+			ends = Arrays.copyOf(ends, size * 2);
+			ids = Arrays.copyOf(ids, size * 2);
+		}
+		starts[size] = start;
+		ends[size] = end + 1;
+		ids[size] = id;
+		size++;
+	}
+
+	/**
+	 * Sweep the starts and ends of the intervals, keeping the features of the current position
+	 */
+	@Override
+	public void build(int[] featureIds)
+	{
+		long[] byStart = new long[size], byEnd = new long[size]; // position << 32 | name index
+		for(int i = 0; i < size; i++)
+		{
+			byStart[i] = ((long)starts[i] << 32) | ids[i];
+			byEnd[i] = ((long)ends[i] << 32) | ids[i];
+		}
+		starts = ends = ids = null;
+		Arrays.sort(byStart);
+		Arrays.sort(byEnd);
+
+		int[] depth = new int[featureIds.length]; // Number of intervals of each name index covering the current position
+		int[] active = new int[8]; // Feature ids covering the current position, sorted
+		int nbActive = 0;
+		HashMap<String, Integer> sets = new HashMap<>();
+		TIntArrayList offsets = new TIntArrayList(), members = new TIntArrayList();
+		offsets.add(0);
+		TIntArrayList segS = new TIntArrayList(), segE = new TIntArrayList(), segI = new TIntArrayList();
+		int currentSet = -1, currentStart = 0;
+		int i = 0, j = 0;
+		while(j < size) // Every interval ends after its start
+		{
+			int pos = (int)(byEnd[j] >>> 32);
+			if(i < size) pos = Math.min(pos, (int)(byStart[i] >>> 32));
+			for(; j < size && (int)(byEnd[j] >>> 32) == pos; j++)
+			{
+				int name = (int)byEnd[j];
+				if(--depth[name] == 0)
+				{
+					int k = Arrays.binarySearch(active, 0, nbActive, featureIds[name]);
+					System.arraycopy(active, k + 1, active, k, nbActive - k - 1);
+					nbActive--;
+				}
+			}
+			for(; i < size && (int)(byStart[i] >>> 32) == pos; i++)
+			{
+				int name = (int)byStart[i];
+				if(depth[name]++ == 0)
+				{
+					if(nbActive == active.length) active = Arrays.copyOf(active, nbActive * 2);
+					int k = -Arrays.binarySearch(active, 0, nbActive, featureIds[name]) - 1;
+					System.arraycopy(active, k, active, k + 1, nbActive - k);
+					active[k] = featureIds[name];
+					nbActive++;
+				}
+			}
+
+			// Intern the set of features starting here
+			int set = -1;
+			if(nbActive != 0)
+			{
+				String key = Arrays.toString(Arrays.copyOf(active, nbActive));
+				Integer s = sets.get(key);
+				if(s == null)
+				{
+					s = sets.size();
+					sets.put(key, s);
+					for(int k = 0; k < nbActive; k++) members.add(active[k]);
+					offsets.add(members.size());
+				}
+				set = s;
+			}
+			if(set != currentSet)
+			{
+				if(currentSet != -1)
+				{
+					segS.add(currentStart);
+					segE.add(pos);
+					segI.add(currentSet);
+				}
+				currentSet = set;
+				currentStart = pos;
+			}
+		}
+		segStarts = segS.toArray();
+		segEnds = segE.toArray();
+		segSets = segI.toArray();
+		setOffsets = offsets.toArray();
+		setMembers = members.toArray();
+	}
+
+	@Override
+	public void query(int start, int end, IntSet result)
+	{
+		query(0, start, end, result);
+	}
+
+	/**
+	 * @param from no segment before it overlaps [start, end]
+	 */
+	private void query(int from, int start, int end, IntSet result)
+	{
+		// First segment ending after start
+		int lo = from, hi = segEnds.length;
+		while(lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if(segEnds[mid] <= start) lo = mid + 1;
+			else hi = mid;
+		}
+		int lastSet = -1;
+		for(int k = lo; k < segStarts.length && segStarts[k] <= end; k++)
+		{
+			int set = segSets[k];
+			if(set == lastSet) continue;
+			for(int m = setOffsets[set]; m < setOffsets[set + 1]; m++) result.add(setMembers[m]);
+			lastSet = set;
+		}
+	}
+
+	@Override
+	public void write(DataOutputStream out) throws IOException
+	{
+		IndexCache.writeInts(out, segStarts);
+		IndexCache.writeInts(out, segEnds);
+		IndexCache.writeInts(out, segSets);
+		IndexCache.writeInts(out, setOffsets);
+		IndexCache.writeInts(out, setMembers);
+	}
+
+	@Override
+	public void read(ByteBuffer in)
+	{
+		starts = ends = ids = null;
+		segStarts = IndexCache.readInts(in);
+		segEnds = IndexCache.readInts(in);
+		segSets = IndexCache.readInts(in);
+		setOffsets = IndexCache.readInts(in);
+		setMembers = IndexCache.readInts(in);
+	}
+
+	@Override
+	public FeatureIndex.Cursor cursor()
+	{
+		return new FeatureIndex.Cursor()
+		{
+			private int first = 0; // First segment not ended before the current read
+
+			@Override
+			public void advance(int readStart)
+			{
+				while(first < segEnds.length && segEnds[first] <= readStart) first++;
+			}
+
+			@Override
+			public void query(int start, int end, IntSet result)
+			{
+				SegmentIndex.this.query(first, start, end, result);
+			}
+		};
+	}
+}
@@ -0,0 +1,55 @@
+package com.intervals;
+
+/**
+ * Overlapping features of reads sorted by coordinate: a sweep line per reference sequence (see Forest.Contig.Cursor), instead of searching the whole index for each block
+ * One per thread reading a file sorted by coordinate (see ReferenceFeatures). Reads behind the sweep line (e.g. a mate read earlier, or spilled pairs) are searched in the index
+ */
+class SweepCursor
+{
+	private final Line[] lines; // By reference index, kept so that mates on another reference sequence do not restart the sweep
+	private Line current = null;
+
+	private static class Line
+	{
+		final Forest.Contig.Cursor cursor;
+		int readStart = 0;
+
+		Line(Forest.Contig contig)
+		{
+			this.cursor = contig.cursor();
+		}
+	}
+
+	SweepCursor(int nbReferences)
+	{
+		this.lines = new Line[nbReferences];
+	}
+
+	/**
+	 * Move to the next read
+	 * @param contig features of its reference sequence
+	 * @return false if the read starts before the last one of its reference sequence (then search the index)
+	 */
+	boolean seek(int referenceIndex, Forest.Contig contig, int readStart)
+	{
+		current = lines[referenceIndex];
+		if(current == null)
+		{
+			current = new Line(contig);
+			lines[referenceIndex] = current;
+		}
+		if(readStart < current.readStart) return false;
+		current.readStart = readStart;
+		current.cursor.advance(readStart);
+		return true;
+	}
+
+	/**
+	 * Same as Forest.Contig.query(), for a block of the read given to seek()
+	 * @param strand see Forest.getStrand()
+	 */
+	void query(int start, int end, int strand, IntSet result)
+	{
+		current.cursor.query(start, end, strand, result);
+	}
+}
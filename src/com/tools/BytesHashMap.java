@@ -0,0 +1,66 @@
+package com.tools;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Read-only hash map with ASCII keys, that can be queried directly with a slice of a byte array (i.e. without creating a String)
+ * Open addressing with linear probing, the table is built once (e.g. from the GTF genes) and then only queried, so it can be shared by several threads
+ */
+public class BytesHashMap<V>
+{
+	private final byte[][] keys;
+	private final Object[] values;
+	private final int[] hashes;
+	private final int mask;
+
+	public BytesHashMap(Map<String, V> map)
+	{
+		int capacity = 16;
+		while(capacity < map.size() * 2) capacity <<= 1; // Load factor <= 0.5
+		this.keys = new byte[capacity][];
+		this.values = new Object[capacity];
+		this.hashes = new int[capacity];
+		this.mask = capacity - 1;
+		for(Map.Entry<String, V> e:map.entrySet())
+		{
+			byte[] key = e.getKey().getBytes(StandardCharsets.US_ASCII);
+			int h = hash(key, 0, key.length);
+			int i = h & mask;
+			while(keys[i] != null) i = (i + 1) & mask;
+			keys[i] = key;
+			values[i] = e.getValue();
+			hashes[i] = h;
+		}
+	}
+
+	/**
+	 * @return the value associated to the key b[off..off+len), or null if not found
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(byte[] b, int off, int len)
+	{
+		int h = hash(b, off, len);
+		int i = h & mask;
+		byte[] key;
+		while((key = keys[i]) != null)
+		{
+			if(hashes[i] == h && key.length == len && equals(key, b, off)) return (V)values[i];
+			i = (i + 1) & mask;
+		}
+		return null;
+	}
+
+	private static boolean equals(byte[] key, byte[] b, int off)
+	{
+		for(int i = 0; i < key.length; i++) if(key[i] != b[off + i]) return false;
+		return true;
+	}
+
+	private static int hash(byte[] b, int off, int len)
+	{
+		int h = 0x811c9dc5; // FNV-1a
+		for(int i = off; i < off + len; i++) h = (h ^ b[i]) * 0x01000193;
+		return h ^ (h >>> 16);
+	}
+}
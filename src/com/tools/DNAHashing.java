@@ -1,5 +1,6 @@
 package com.tools;
 
+import java.util.Arrays;
 import java.util.HashMap;
 
 /**
@@ -14,6 +15,7 @@ public class DNAHashing
 {
 	private static HashMap<Character, Integer> map = new HashMap<Character, Integer>();
 	private static char[] nuclChar= new char[] {'A', 'C', 'G', 'T'};
+	private static byte[] nuclByte = new byte[256]; // Same as map, for ASCII bytes
 	
 	static // A map is faster than a switch:case
 	{
@@ -27,6 +29,8 @@ public class DNAHashing
 		map.put('t', 3);
 		map.put('N', 2); // return 'G' as default
 		map.put('-', 2); // return 'G' as default
+		Arrays.fill(nuclByte, (byte)2); // Other characters are also taken as Gs
+		for(Character c:map.keySet()) nuclByte[c] = (byte)(int)map.get(c);
 	}
 	
 	/*
@@ -69,6 +73,20 @@ public class DNAHashing
 	    return intOut;
 	}
 	
+	/**
+	 * Same as convertNuclStrToInt64 but directly on ASCII bytes (e.g. a BAM tag), without creating a String
+	 */
+	public static long convertNuclBytesToInt64(byte[] b, int off, int len) // We can use long for up to length 32nt
+	{
+	    long intOut = 0;
+	    for (int ii = off; ii < off + len; ii++)
+	    {
+	        intOut = intOut << 2;
+	        intOut += nuclByte[b[ii] & 0xff];
+	    }
+	    return intOut;
+	}
+	
 	public static String convertNuclInt64toString(long nuclNum, int length)
 	{
 		char[] nuclOut = new char[length];
@@ -21,12 +21,14 @@ import java.util.Set;
 import java.util.zip.GZIPInputStream;
 
 import com.errors.ErrorMessage;
+import com.frc.bam.BamRecordView;
+import com.frc.bam.StreamSamReader;
 import com.frc.parameters.Global;
 import com.frc.parameters.Parameters;
 import com.intervals.Forest;
+import com.intervals.IntSet;
+import com.intervals.ReferenceFeatures;
 
-import htsjdk.samtools.Cigar;
-import htsjdk.samtools.CigarElement;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMSequenceDictionary;
 
@@ -100,6 +102,84 @@ public class Utils
 		return res;
 	}
 	
+	/**
+	 * Read the BAM file(s) of the --bam option, in Parameters.inputBAMFiles/sampleNames:
+	 * - a BAM file (or SAM, or stdin '-', or a FIFO, see StreamSamReader)
+	 * - a comma-separated list of BAM files
+	 * - a manifest file: one BAM path per line (relative to the manifest folder), optionally followed by a tab and the sample name. BAM files of a same sample are summed
+	 * Without explicit sample name, the sample is the name of the file without extension
+	 * @param arg value of the --bam option
+	 */
+	public static void readBAMList(String arg) throws IOException
+	{
+		if(!arg.contains(",") && isManifest(new File(arg)))
+		{
+			File manifest = new File(arg);
+			if(!manifest.isFile()) new ErrorMessage("No file at path " + arg);
+			BufferedReader br = new BufferedReader(new FileReader(manifest));
+			String line = br.readLine();
+			int l = 0;
+			while(line != null)
+			{
+				l++;
+				if(!line.trim().equals("") && !line.startsWith("#"))
+				{
+					String[] tokens = line.split("\t");
+					if(tokens.length > 2) new ErrorMessage("Error on l." + l + " of " + arg + ": More than two values per line are not authorized");
+					File bam = new File(tokens[0].trim());
+					if(!bam.isAbsolute()) bam = new File(manifest.getAbsoluteFile().getParentFile(), tokens[0].trim());
+					addBAM(bam, (tokens.length > 1)?tokens[1].trim():null);
+				}
+				line = br.readLine();
+			}
+			br.close();
+			if(Parameters.inputBAMFiles.isEmpty()) new ErrorMessage("No BAM file was found in " + arg);
+		}
+		else for(String path:arg.split(",")) addBAM(new File(path.trim()), null);
+	}
+
+	/**
+	 * @param sample sample name, or null for the name of the file (which should then be unique)
+	 */
+	private static void addBAM(File bam, String sample)
+	{
+		if(!StreamSamReader.isStdin(bam))
+		{
+			if(!bam.exists()) new ErrorMessage("No file at path " + bam);
+			if(bam.isDirectory()) new ErrorMessage(bam + " is not a file");
+		}
+		if(sample == null)
+		{
+			sample = StreamSamReader.isStdin(bam)?"stdin":bam.getName();
+			if(sample.endsWith(".bam") || sample.endsWith(".sam")) sample = sample.substring(0, sample.length() - 4);
+			else if(sample.endsWith(".cram")) sample = sample.substring(0, sample.length() - 5);
+			if(Parameters.sampleNames.contains(sample)) new ErrorMessage("Several BAM files are named " + sample + ". Please name their samples in a manifest file");
+		}
+		if(Parameters.inputBAMFiles.contains(bam)) new ErrorMessage("BAM file " + bam + " is given several times");
+		Parameters.inputBAMFiles.add(bam);
+		Parameters.sampleNames.add(sample);
+	}
+
+	/**
+	 * @return true if the file is a list of BAM files: a text file (not compressed, nor BAM/CRAM), whose first line is not a SAM line (header or record)
+	 */
+	private static boolean isManifest(File f) throws IOException
+	{
+		if(StreamSamReader.isStdin(f) || !f.isFile()) return false; // Do not consume a stream
+		InputStream in = new FileInputStream(f);
+		byte[] magic = new byte[4];
+		int n = in.read(magic);
+		in.close();
+		if(n >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b) return false; // BGZF
+		if(n == 4 && magic[0] == 'B' && magic[1] == 'A' && magic[2] == 'M' && magic[3] == 1) return false; // Uncompressed BAM
+		if(n == 4 && magic[0] == 'C' && magic[1] == 'R' && magic[2] == 'A' && magic[3] == 'M') return false; // CRAM
+		BufferedReader br = new BufferedReader(new FileReader(f));
+		String line = br.readLine();
+		while(line != null && (line.trim().equals("") || line.startsWith("#"))) line = br.readLine();
+		br.close();
+		return line != null && !line.startsWith("@") && line.split("\t").length <= 2;
+	}
+
 	public static String saveBarcode(String barcode, ArrayList<String> barcodes, int allowedDiff)
 	{
 		int[] diff = new int[barcodes.size()];
@@ -131,54 +211,58 @@ public class Utils
 		return sav;
 	}
 	
-	public static HashSet<String> getOverlappingFeatures(String chr, int start, int end, Cigar c, boolean readNegativeStrandFlag)
-	{
-		if(Parameters.is_paired) new ErrorMessage("You should use this function with the 'firstOfPair' argument with paired-end data");
-		return getOverlappingFeatures(chr, start, end, c, readNegativeStrandFlag, false); // We put false, it has no impact anyways
-	}
-	
-	public static HashSet<String> getOverlappingFeatures(String chr, int start, int end, Cigar c, boolean readNegativeStrandFlag, boolean firstOfPair)
+	/**
+	 * Add the ids of the features overlapped by the aligned blocks of a read to res (nothing is added if its CIGAR is not supported)
+	 * @param referenceIndex of the read in the header of its file (see Forest.setFile)
+	 * @param c raw BAM CIGAR operations (length << 4 | op)
+	 * @param nbCigarOps number of CIGAR operations in c
+	 */
+	public static void getOverlappingFeatures(int referenceIndex, int start, int end, int[] c, int nbCigarOps, boolean readNegativeStrandFlag, boolean firstOfPair, IntSet res)
 	{
-		HashSet<String> res = new HashSet<>();
-		List<CigarElement> l = c.getCigarElements();
+		int mark = res.size(); // res may already hold the features of the mate
+		ReferenceFeatures features = Forest.getReferenceFeatures();
+		boolean indexed = features.seek(referenceIndex, start); // false if there is no feature on this reference sequence
 		int s = start;
-		for(CigarElement cigar:l)
+		for(int i = 0; i < nbCigarOps; i++)
 		{
-			switch(cigar.getOperator())
+			int length = c[i] >>> 4;
+			switch(c[i] & 0xf)
 			{
-				case M:
-					res.addAll(Forest.findOverlappingFeatures(chr, s, s + cigar.getLength() - 1, readNegativeStrandFlag, firstOfPair)); // -1 Because the last letter is at the index before
-					s += cigar.getLength();
+				case BamRecordView.CIGAR_M:
+					if(indexed) features.findOverlappingFeatures(s, s + length - 1, readNegativeStrandFlag, firstOfPair, res); // -1 Because the last letter is at the index before
+					s += length;
 					break;
-				case N:
-					s += cigar.getLength();
+				case BamRecordView.CIGAR_N:
+					s += length;
 					break;
-				case D:
-					s += cigar.getLength();
+				case BamRecordView.CIGAR_D:
+					s += length;
 					break;
-				case EQ:
-					System.out.println("CIGAR = " + c);
-					return new HashSet<>(); // TODO
-				case H:
+				case BamRecordView.CIGAR_EQ:
+					System.out.println("CIGAR = " + BamRecordView.cigarToString(c, nbCigarOps));
+					res.truncate(mark);
+					return; // TODO
+				case BamRecordView.CIGAR_H:
 					// Hard clipping. Do nothing ? (alignment start is after any H & alignment end before any H)
 					break;
-				case I:
+				case BamRecordView.CIGAR_I:
 					// Do nothing
 					break;
-				case P:
-					System.out.println("CIGAR = " + c);
-					return new HashSet<>(); // TODO
-				case S:
+				case BamRecordView.CIGAR_P:
+					System.out.println("CIGAR = " + BamRecordView.cigarToString(c, nbCigarOps));
+					res.truncate(mark);
+					return; // TODO
+				case BamRecordView.CIGAR_S:
 					// Soft clipping. Do nothing (alignment start is after any S & alignment end before any S)
 					break;
-				case X:
-					System.out.println("CIGAR = " + c);
-					return new HashSet<>(); // TODO
+				case BamRecordView.CIGAR_X:
+					System.out.println("CIGAR = " + BamRecordView.cigarToString(c, nbCigarOps));
+					res.truncate(mark);
+					return; // TODO
 			}
 		}
 		
 		if(s != end + 1) new ErrorMessage("Error while reading CIGAR");
-		return res;
 	}
 	
 	public static String[] sortKeys(Map<String, Integer> map)
@@ -253,6 +337,25 @@ public class Utils
     	readFully(in, buf, 0, buf.length);
     }
     
+    /** Skips len bytes in a loop.
+     * @param in The InputStream to skip from
+     * @param len The number of bytes to skip
+     * @throws IOException if the stream ends before len bytes were skipped
+     */
+    public static void skipFully(final InputStream in, long len) throws IOException 
+    {
+    	while ( len > 0 )
+    	{
+    		long ret = in.skip( len );
+    		if( ret <= 0 ) 
+    		{
+    			if( in.read() < 0 ) throw new IOException("Premature EOF from inputStream");
+    			ret = 1;
+    		}
+    		len -= ret;
+    	}
+    }
+    
     /**
      * This function was taken from the great implementation of jvarkit from Pierre Lindenbaum: https://github.com/lindenb
      */